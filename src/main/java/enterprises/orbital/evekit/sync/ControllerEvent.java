@@ -2,7 +2,13 @@ package enterprises.orbital.evekit.sync;
 
 import enterprises.orbital.base.OrbitalProperties;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Marker interface for controller events
 public abstract class ControllerEvent implements Runnable {
@@ -10,6 +16,16 @@ public abstract class ControllerEvent implements Runnable {
   protected long dispatchTime;
   // Future tracking execution of this event.
   protected Future<?> tracker;
+  // Scheduler notified when this event completes, if tracked
+  private EventScheduler owner;
+  // Watchdog deadline for this event while dispatched.  Guarded by the watchdog.
+  EventWatchdog.Timeout watchdogTimeout;
+  // Task created by track, needed to resume a parked event
+  private TrackedTask trackedTask;
+  // Event being run by the current thread, used to propagate the event deadline to blocking calls
+  private static final ThreadLocal<ControllerEvent> running = new ThreadLocal<>();
+  // Time by which this event should start, used to order events on deadline ordered executors
+  private volatile long startDeadline = Long.MAX_VALUE;
 
   public long getDispatchTime() {
     return dispatchTime;
@@ -19,12 +35,315 @@ public abstract class ControllerEvent implements Runnable {
     return tracker;
   }
 
+  /**
+   * Return the time by which this event must complete, i.e. the dispatch time plus the maximum delay.
+   *
+   * @return deadline in milliseconds, or Long.MAX_VALUE if the event has not been dispatched or has no deadline.
+   */
+  public long getDeadline() {
+    long maxDelay = maxDelayTime();
+    if (dispatchTime == 0 || maxDelay == Long.MAX_VALUE) return Long.MAX_VALUE;
+    long deadline = dispatchTime + maxDelay;
+    return deadline < dispatchTime ? Long.MAX_VALUE : deadline;
+  }
+
+  /**
+   * Return the time remaining before the deadline of the event being run by the current thread.  Blocking
+   * calls (HTTP reads, database queries) should use this to bound their timeouts, since they may not respond to
+   * the interrupt sent when the watchdog cancels an event.
+   *
+   * @return remaining time in milliseconds (possibly negative), or Long.MAX_VALUE if the current thread is not
+   * running a tracked event or the event has no deadline.
+   */
+  public static long remainingTime() {
+    ControllerEvent ev = running.get();
+    if (ev == null) return Long.MAX_VALUE;
+    long deadline = ev.getDeadline();
+    return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - OrbitalProperties.getCurrentTime();
+  }
+
+  /**
+   * Return the time remaining for database queries made by the current thread.  Only events which bound their
+   * queries (see {@link #boundsQueries()}) limit query time, so e.g. deletes and snapshots may run long queries.
+   *
+   * @return remaining time in milliseconds (possibly negative), or Long.MAX_VALUE if queries made by the current
+   * thread should not be bounded.
+   */
+  public static long remainingQueryTime() {
+    ControllerEvent ev = running.get();
+    return ev == null || !ev.boundsQueries() ? Long.MAX_VALUE : remainingTime();
+  }
+
+  /**
+   * Return whether database queries made while running this event are bounded by its deadline.
+   *
+   * @return true if queries should time out at this event's deadline.  The default is false.
+   */
+  protected boolean boundsQueries() {
+    return false;
+  }
+
+  /**
+   * Return the event being run by the current thread.
+   *
+   * @return the current event, or null if the current thread is not running a tracked event or a task created by
+   * {@link #inheritCurrent(Runnable)}.
+   */
+  public static ControllerEvent current() {
+    return running.get();
+  }
+
+  /**
+   * Wrap a task so that it runs as part of the event being run by the calling thread, whichever thread eventually
+   * runs it.  Work an event hands to other threads then sees the event's deadline in {@link #remainingTime()}, and
+   * is attributed to the event by {@link #current()}.
+   *
+   * @param task task to wrap
+   * @return a task which runs the given task as part of the current event, or the task itself if the calling
+   * thread is not running an event.
+   */
+  public static Runnable inheritCurrent(Runnable task) {
+    ControllerEvent ev = running.get();
+    if (ev == null) return task;
+    return () -> {
+      ControllerEvent previous = running.get();
+      running.set(ev);
+      try {
+        task.run();
+      } finally {
+        running.set(previous);
+      }
+    };
+  }
+
+  /**
+   * Return the time by which this event should start running to meet its freshness target.
+   *
+   * @return start deadline in milliseconds, or Long.MAX_VALUE if the event has no start deadline.
+   */
+  public long getStartDeadline() {
+    return startDeadline;
+  }
+
+  public void setStartDeadline(long startDeadline) {
+    this.startDeadline = startDeadline;
+  }
+
+  /**
+   * Return the event run by a task created by {@link #track(EventScheduler)}, or by a task wrapped with
+   * {@link #runsEvent(ControllerEvent, Runnable)}.
+   *
+   * @param task task handed to an executor
+   * @return the event run by the task, or null if the task is not a tracked event.
+   */
+  public static ControllerEvent eventOf(Runnable task) {
+    if (task instanceof TrackedTask) return ((TrackedTask) task).event();
+    return task instanceof EventRunner ? ((EventRunner) task).event : null;
+  }
+
+  // A task which runs an event on behalf of an executor in front of the one which finally runs it
+  private static final class EventRunner implements Runnable {
+    final ControllerEvent event;
+    final Runnable task;
+
+    EventRunner(ControllerEvent event, Runnable task) {
+      this.event = event;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+  }
+
+  /**
+   * Wrap a task which runs an event, so that executors it is handed to still see the event in
+   * {@link #eventOf(Runnable)}.  Used by executors which queue events in front of another executor and hand it
+   * their own task in place of the event's tracker.
+   *
+   * @param event event run by the task
+   * @param task  task which runs the event
+   * @return the wrapped task
+   */
+  public static Runnable runsEvent(ControllerEvent event, Runnable task) {
+    return new EventRunner(event, task);
+  }
+
   public void setTracker(Future<?> tracker) {
     this.tracker = tracker;
   }
 
+  public EventScheduler getOwner() {
+    return owner;
+  }
+
+  /**
+   * Return the keys under which this event should be indexed while pending.  Keys must not change
+   * while the event is pending.
+   *
+   * @return index keys for this event, empty if the event is only indexed by class.
+   */
+  public Collection<?> getIndexKeys() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Create a task which runs this event and reports completion to the given scheduler.  The task
+   * becomes the tracker for this event and should be handed to an executor in place of the event.
+   * Completion is reported when the event finishes normally, throws, or is cancelled.
+   *
+   * @param owner scheduler to notify on completion
+   * @return the task which should be dispatched to run this event
+   */
+  FutureTask<?> track(EventScheduler owner) {
+    this.owner = owner;
+    trackedTask = new TrackedTask();
+    tracker = trackedTask;
+    return trackedTask;
+  }
+
+  // Park states for a tracked task
+  private static final int RUNNING = 0;
+  private static final int PARK_REQUESTED = 1;
+  private static final int PARKED = 2;
+  private static final int RESUME_REQUESTED = 3;
+
+  // Tracker which supports parking.  A run which ends while parked leaves the task incomplete so that it can be
+  // run again when resumed.  Cancellation (e.g. by the watchdog) completes a parked task as usual.
+  private final class TrackedTask extends FutureTask<Void> {
+    private final AtomicInteger parkState = new AtomicInteger(RUNNING);
+    private volatile Executor resumeExecutor;
+    // Thread currently running the event, and the time the event was cancelled while still running.  Guarded by
+    // this task.
+    private Thread runner;
+    private long zombieSince;
+
+    TrackedTask() {
+      super(ControllerEvent.this, null);
+    }
+
+    ControllerEvent event() {
+      return ControllerEvent.this;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        runner = Thread.currentThread();
+      }
+      ControllerEvent previous = running.get();
+      running.set(ControllerEvent.this);
+      boolean ran;
+      try {
+        ran = runAndReset();
+      } finally {
+        running.set(previous);
+        long since;
+        synchronized (this) {
+          runner = null;
+          since = zombieSince;
+          zombieSince = 0;
+        }
+        if (since != 0) EventWatchdog.getInstance()
+                                     .zombieFinished(ControllerEvent.this, since);
+      }
+      if (!ran) return;
+      if (parkState.compareAndSet(PARK_REQUESTED, PARKED)) return;
+      if (parkState.compareAndSet(RESUME_REQUESTED, RUNNING)) {
+        // Resumed before this run finished, run again now
+        dispatch(resumeExecutor);
+        return;
+      }
+      set(null);
+    }
+
+    void dispatch(Executor executor) {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        cancel(false);
+      }
+    }
+
+    @Override
+    protected void done() {
+      EventWatchdog.getInstance()
+                   .unwatch(ControllerEvent.this);
+      completed();
+      owner.eventCompleted(ControllerEvent.this);
+    }
+  }
+
   /**
-   * Return max delay time for this event. If this now - dispatch exceeds this value, then we'll cancel the event.
+   * Record that this event was cancelled while a thread was still running it.
+   *
+   * @param now current time
+   * @return true if a thread is still running this event, false otherwise.
+   */
+  boolean markZombie(long now) {
+    TrackedTask task = trackedTask;
+    if (task == null) return false;
+    synchronized (task) {
+      if (task.runner == null) return false;
+      if (task.zombieSince == 0) task.zombieSince = now;
+      return true;
+    }
+  }
+
+  /**
+   * Park this event.  Must be called from {@link #run()}.  When run returns, the event's tracker remains
+   * incomplete and the event stays pending until {@link #resume(Executor)} is called, or until the event is
+   * cancelled.  The watchdog deadline continues to apply while the event is parked.
+   */
+  protected void park() {
+    if (trackedTask == null) throw new IllegalStateException("Only tracked events may be parked");
+    trackedTask.parkState.set(PARK_REQUESTED);
+  }
+
+  /**
+   * Cancel a park request made during the current run.  Only valid if nothing could have resumed the event
+   * since {@link #park()} was called.
+   */
+  protected void unpark() {
+    trackedTask.parkState.compareAndSet(PARK_REQUESTED, RUNNING);
+  }
+
+  /**
+   * Resume a parked event by running it again on the given executor.  It is safe to call this method before
+   * the parking run has returned.
+   *
+   * @param executor executor which should run the event
+   * @return true if the event will run again, false if the event is not parked or is already done.
+   */
+  public boolean resume(Executor executor) {
+    TrackedTask task = trackedTask;
+    if (task == null || task.isDone()) return false;
+    task.resumeExecutor = executor;
+    while (true) {
+      int state = task.parkState.get();
+      if (state == PARKED) {
+        if (task.parkState.compareAndSet(PARKED, RUNNING)) {
+          task.dispatch(executor);
+          return true;
+        }
+      } else if (state == PARK_REQUESTED) {
+        if (task.parkState.compareAndSet(PARK_REQUESTED, RESUME_REQUESTED)) return true;
+      } else {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Called once when this event's tracker is done, whether the event finished normally, threw, or was cancelled.
+   * Unlike the end of {@link #run()}, this is also called for events cancelled while queued or parked.  Runs on
+   * the thread which completed or cancelled the event, before the owning scheduler is notified.
+   */
+  protected void completed() {}
+
+  /**
+   * Return max delay time for this event. If this now - dispatch exceeds this value, then the watchdog will cancel the event.
    *
    * @return max delay time in milliseconds.
    */
@@ -35,8 +354,14 @@ public abstract class ControllerEvent implements Runnable {
     return "ControllerEvent [dispatchTime=" + dispatchTime + ", tracker=" + tracker + "]";
   }
 
+  /**
+   * Record the dispatch of this event and register its deadline with the watchdog.  A parked event which is
+   * resumed keeps its original dispatch time, so time spent parked counts against the maximum delay.
+   */
   @Override
   public void run() {
-    dispatchTime = OrbitalProperties.getCurrentTime();
+    if (dispatchTime == 0) dispatchTime = OrbitalProperties.getCurrentTime();
+    EventWatchdog.getInstance()
+                 .watch(this);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package enterprises.orbital.evekit.sync;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a fixed set of threads in earliest deadline first order.  The deadline of a tracked event is its
+ * start deadline (see {@link ControllerEvent#getStartDeadline()}).  Other tasks, and events without a start
+ * deadline, are given the time they were submitted as their deadline, so they queue behind work which was
+ * already late when they arrived but are never starved.  Ties are broken in submission order.
+ * <p>
+ * Delayed tasks wait on a timer thread and are queued when due.  A parked event which is resumed keeps its
+ * start deadline, and therefore its place relative to other work.  Threads come from a thread pool over a
+ * priority queue, so a worker interrupted by the watchdog cancelling its event is cleared before its next task,
+ * and a worker lost to a failing task is replaced.
+ */
+public class DeadlineOrderedExecutor extends TimerBackedScheduledExecutor {
+  private static final Logger log = Logger.getLogger(DeadlineOrderedExecutor.class.getName());
+
+  // A queued task with its deadline
+  private final class Entry implements Runnable, Comparable<Entry> {
+    final long deadline;
+    final long seq;
+    final Runnable task;
+
+    Entry(long deadline, long seq, Runnable task) {
+      this.deadline = deadline;
+      this.seq = seq;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      int c = Long.compare(deadline, o.deadline);
+      return c != 0 ? c : Long.compare(seq, o.seq);
+    }
+
+    @Override
+    public void run() {
+      long lateness = OrbitalProperties.getCurrentTime() - deadline;
+      started.incrementAndGet();
+      if (lateness > 0) {
+        late.incrementAndGet();
+        maxLateness.accumulateAndGet(lateness, Math::max);
+      }
+      try {
+        task.run();
+      } catch (Throwable e) {
+        log.log(Level.WARNING, "Task failed, continuing", e);
+      }
+    }
+  }
+
+  private final ThreadPoolExecutor workers;
+  private final AtomicLong seq = new AtomicLong(0);
+  // Tasks started, tasks started after their deadline, and the largest start lateness seen
+  private final AtomicLong started = new AtomicLong(0);
+  private final AtomicLong late = new AtomicLong(0);
+  private final AtomicLong maxLateness = new AtomicLong(0);
+
+  public DeadlineOrderedExecutor(String name, int threadCount) {
+    super(createTimer(name + "-timer"));
+    int threads = Math.max(1, threadCount);
+    AtomicInteger count = new AtomicInteger(0);
+    workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                                     r -> new Thread(r, name + "-" + count.getAndIncrement()));
+    workers.prestartAllCoreThreads();
+    log.info(name + ": deadline ordered with " + threads + " threads");
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+    ControllerEvent ev = ControllerEvent.eventOf(command);
+    long deadline = ev == null ? Long.MAX_VALUE : ev.getStartDeadline();
+    if (deadline == Long.MAX_VALUE) deadline = OrbitalProperties.getCurrentTime();
+    workers.execute(new Entry(deadline, seq.getAndIncrement(), command));
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    // Queued tasks still run, as before shutdown
+    workers.shutdown();
+  }
+
+  /**
+   * Return the number of tasks waiting for a thread.
+   *
+   * @return number of queued tasks
+   */
+  public int getQueuedCount() {
+    return workers.getQueue()
+                  .size();
+  }
+
+  @Override
+  public String toString() {
+    return "DeadlineOrderedExecutor{" +
+        "threads=" + workers.getPoolSize() +
+        ", queued=" + workers.getQueue()
+                             .size() +
+        ", started=" + started.get() +
+        ", late=" + late.get() +
+        ", maxLateness=" + maxLateness.get() +
+        '}';
+  }
+
+}
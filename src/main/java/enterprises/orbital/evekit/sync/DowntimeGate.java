@@ -0,0 +1,169 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Pauses sync dispatch while the EVE server is down.  The server is considered down during a configured daily
+ * downtime window, and whenever the most recent server status request (made by the REF_SERVER_STATUS sync)
+ * failed.  When the server comes back, dispatch resumes gradually: over the ramp interval the fraction of due
+ * syncs admitted grows linearly, and the rest are deferred to a random time within the remaining ramp, so the
+ * backlog accumulated during downtime is spread out rather than fired at once.
+ * <p>
+ * Server status is observed by intercepting ESI status requests, so this gate works no matter where the status
+ * sync stores its result.
+ */
+public class DowntimeGate implements Interceptor {
+  private static final Logger log = Logger.getLogger(DowntimeGate.class.getName());
+  private static final String PROP_ENABLED = "enterprises.orbital.evekit.sync_mgr.downtime.enabled";
+  private static final boolean DEF_ENABLED = true;
+  // Daily downtime window start, in minutes after midnight UTC, and length in milliseconds
+  private static final String PROP_START = "enterprises.orbital.evekit.sync_mgr.downtime.start_minute";
+  private static final long DEF_START = 11 * 60;
+  private static final String PROP_LENGTH = "enterprises.orbital.evekit.sync_mgr.downtime.length";
+  private static final long DEF_LENGTH = TimeUnit.MILLISECONDS.convert(15, TimeUnit.MINUTES);
+  // Interval over which dispatch ramps back up after downtime
+  private static final String PROP_RAMP = "enterprises.orbital.evekit.sync_mgr.downtime.ramp";
+  private static final long DEF_RAMP = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+  // A failed status observation older than this is ignored, so a stalled status sync can not pause dispatch forever
+  private static final String PROP_STATUS_STALE = "enterprises.orbital.evekit.sync_mgr.downtime.status_stale";
+  private static final long DEF_STATUS_STALE = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+  // Paused syncs are rechecked after this interval
+  private static final long PAUSE_RECHECK = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  private static final long ONE_DAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+  // ESI server status route
+  private static final Pattern STATUS_PATH = Pattern.compile("^/[^/]+/status/?$");
+
+  private static DowntimeGate instance;
+
+  public static synchronized DowntimeGate getInstance() {
+    if (instance == null) instance = new DowntimeGate();
+    return instance;
+  }
+
+  private final boolean enabled;
+  private final long windowStart;
+  private final long windowLength;
+  private final long ramp;
+  private final long statusStale;
+
+  // Gate state, guarded by this
+  private boolean paused;
+  private long resumedAt;
+  private long statusDownAt;
+  // Admission counts for the current ramp
+  private long seen;
+  private long admitted;
+  private long pauses;
+
+  private DowntimeGate() {
+    enabled = OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED);
+    windowStart = TimeUnit.MILLISECONDS.convert(OrbitalProperties.getLongGlobalProperty(PROP_START, DEF_START),
+                                                TimeUnit.MINUTES);
+    windowLength = OrbitalProperties.getLongGlobalProperty(PROP_LENGTH, DEF_LENGTH);
+    ramp = OrbitalProperties.getLongGlobalProperty(PROP_RAMP, DEF_RAMP);
+    statusStale = OrbitalProperties.getLongGlobalProperty(PROP_STATUS_STALE, DEF_STATUS_STALE);
+    log.info("Downtime gate: enabled=" + enabled + " windowStart=" + windowStart + " length=" + windowLength +
+                 " ramp=" + ramp);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    if (!STATUS_PATH.matcher(chain.request()
+                                  .httpUrl()
+                                  .encodedPath())
+                    .matches())
+      return chain.proceed(chain.request());
+    try {
+      Response response = chain.proceed(chain.request());
+      observeStatus(response.isSuccessful());
+      return response;
+    } catch (IOException e) {
+      observeStatus(false);
+      throw e;
+    }
+  }
+
+  /**
+   * Record the outcome of a server status request.
+   *
+   * @param up true if the server responded successfully
+   */
+  public synchronized void observeStatus(boolean up) {
+    statusDownAt = up ? 0 : OrbitalProperties.getCurrentTime();
+  }
+
+  // True if the given time falls in the daily downtime window
+  private boolean inWindow(long now) {
+    long offset = Math.floorMod(now - windowStart, ONE_DAY);
+    return offset < windowLength;
+  }
+
+  // Update the paused state.  Must hold lock.
+  private void update(long now) {
+    boolean down = inWindow(now) || (statusDownAt != 0 && now - statusDownAt < statusStale);
+    if (down && !paused) {
+      paused = true;
+      pauses++;
+      log.info("EVE server down, pausing sync dispatch");
+    } else if (!down && paused) {
+      paused = false;
+      resumedAt = now;
+      seen = admitted = 0;
+      log.info("EVE server up, resuming sync dispatch over " + ramp + " ms");
+    }
+  }
+
+  /**
+   * Return true if dispatch is currently paused for downtime.
+   *
+   * @return true if paused
+   */
+  public synchronized boolean isPaused() {
+    if (!enabled) return false;
+    update(OrbitalProperties.getCurrentTime());
+    return paused;
+  }
+
+  /**
+   * Decide whether a due sync may be dispatched now.  While paused, syncs are deferred until the next recheck.
+   * While ramping, syncs are admitted in proportion to the fraction of the ramp elapsed.
+   *
+   * @return 0 if the sync may be dispatched, otherwise the time when it should be retried.
+   */
+  public synchronized long blockedUntil() {
+    if (!enabled) return 0;
+    long now = OrbitalProperties.getCurrentTime();
+    update(now);
+    if (paused) return now + PAUSE_RECHECK;
+    long elapsed = now - resumedAt;
+    if (resumedAt == 0 || elapsed >= ramp) return 0;
+    seen++;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (random.nextLong(ramp) < elapsed) {
+      admitted++;
+      return 0;
+    }
+    return now + 1 + random.nextLong(ramp - elapsed);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DowntimeGate{" +
+        "paused=" + paused +
+        ", pauses=" + pauses +
+        ", statusDownAt=" + statusDownAt +
+        ", resumedAt=" + resumedAt +
+        ", rampAdmitted=" + admitted + "/" + seen +
+        '}';
+  }
+
+}
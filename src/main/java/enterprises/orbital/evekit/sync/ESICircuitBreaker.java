@@ -0,0 +1,221 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker per sync endpoint.  Sync events name the endpoint they are synchronizing with
+ * {@link #enter(Object)} and {@link #exit()}, and every ESI request made by that thread in between is recorded
+ * against the endpoint.  A request fails if it throws an IOException (including read timeouts) or ESI returns
+ * a 5xx status, and is slow if it takes longer than a configured latency.
+ * <p>
+ * A closed circuit trips open when, within a measurement window with enough requests, the fraction of failed or
+ * slow requests reaches a threshold.  While open, schedulers call {@link #blockedUntil(Object)} and defer syncs
+ * for the endpoint rather than dispatching them.  Once the open interval passes the circuit is half open: a
+ * single sync is allowed through as a probe, and the first request it makes either closes the circuit or opens it
+ * again.
+ */
+public class ESICircuitBreaker implements Interceptor {
+  private static final Logger log = Logger.getLogger(ESICircuitBreaker.class.getName());
+  private static final String PROP_ENABLED = "enterprises.orbital.evekit.esi.breaker.enabled";
+  private static final boolean DEF_ENABLED = true;
+  // Measurement window in milliseconds
+  private static final String PROP_WINDOW = "enterprises.orbital.evekit.esi.breaker.window";
+  private static final long DEF_WINDOW = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+  // Minimum requests in a window before the circuit may trip
+  private static final String PROP_MIN_REQUESTS = "enterprises.orbital.evekit.esi.breaker.min_requests";
+  private static final long DEF_MIN_REQUESTS = 10;
+  // Percentage of failed or slow requests which trips the circuit
+  private static final String PROP_THRESHOLD = "enterprises.orbital.evekit.esi.breaker.threshold";
+  private static final long DEF_THRESHOLD = 50;
+  // Requests slower than this (milliseconds) count against the circuit
+  private static final String PROP_SLOW = "enterprises.orbital.evekit.esi.breaker.slow";
+  private static final long DEF_SLOW = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+  // Time in milliseconds a tripped circuit stays open before a probe is allowed
+  private static final String PROP_OPEN = "enterprises.orbital.evekit.esi.breaker.open";
+  private static final long DEF_OPEN = TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+  // While a probe is outstanding, blocked syncs retry after at most this interval
+  private static final long PROBE_RECHECK = TimeUnit.MILLISECONDS.convert(15, TimeUnit.SECONDS);
+
+  private enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  // Circuit state for one endpoint, guarded by itself
+  private static final class Circuit {
+    State state = State.CLOSED;
+    long windowStart;
+    long requests;
+    long bad;
+    // Open: time when a probe may be sent.  Half open: time when an unanswered probe may be replaced.
+    long until;
+    long trips;
+  }
+
+  private final boolean enabled;
+  private final long window;
+  private final long minRequests;
+  private final long threshold;
+  private final long slow;
+  private final long open;
+  private final Map<Object, Circuit> circuits = new ConcurrentHashMap<>();
+  private final ThreadLocal<Object> current = new ThreadLocal<>();
+
+  ESICircuitBreaker() {
+    enabled = OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED);
+    window = OrbitalProperties.getLongGlobalProperty(PROP_WINDOW, DEF_WINDOW);
+    minRequests = Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_MIN_REQUESTS, DEF_MIN_REQUESTS));
+    threshold = OrbitalProperties.getLongGlobalProperty(PROP_THRESHOLD, DEF_THRESHOLD);
+    slow = OrbitalProperties.getLongGlobalProperty(PROP_SLOW, DEF_SLOW);
+    open = OrbitalProperties.getLongGlobalProperty(PROP_OPEN, DEF_OPEN);
+    log.info("ESI circuit breaker: enabled=" + enabled + " threshold=" + threshold + "% open=" + open);
+  }
+
+  /**
+   * Attribute ESI requests made by the current thread to an endpoint.
+   *
+   * @param endpoint sync endpoint
+   */
+  public void enter(Object endpoint) {
+    current.set(endpoint);
+  }
+
+  /**
+   * Stop attributing ESI requests made by the current thread.
+   */
+  public void exit() {
+    current.remove();
+  }
+
+  /**
+   * Check whether a sync for an endpoint may be dispatched.  If the circuit is half open, the caller becomes the
+   * probe and subsequent callers are blocked until the probe reports.
+   *
+   * @param endpoint sync endpoint
+   * @return 0 if the sync may be dispatched, otherwise the time when it should be retried.
+   */
+  public long blockedUntil(Object endpoint) {
+    if (!enabled) return 0;
+    Circuit circuit = circuits.get(endpoint);
+    if (circuit == null) return 0;
+    long now = OrbitalProperties.getCurrentTime();
+    synchronized (circuit) {
+      switch (circuit.state) {
+        case HALF_OPEN:
+          if (now < circuit.until) return Math.min(circuit.until, now + PROBE_RECHECK);
+          // fall through
+        case OPEN:
+          if (now < circuit.until) return circuit.until;
+          // Send a probe, or replace a probe which never reported
+          circuit.state = State.HALF_OPEN;
+          circuit.until = now + open;
+          log.info("Circuit half open, probing: " + endpoint);
+          return 0;
+        case CLOSED:
+        default:
+          return 0;
+      }
+    }
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Object endpoint = current.get();
+    if (!enabled || endpoint == null) return chain.proceed(chain.request());
+    long start = System.nanoTime();
+    try {
+      Response response = chain.proceed(chain.request());
+      record(endpoint, response.code() >= 500, elapsed(start));
+      return response;
+    } catch (IOException e) {
+      record(endpoint, true, elapsed(start));
+      throw e;
+    }
+  }
+
+  private static long elapsed(long start) {
+    return TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+  private void record(Object endpoint, boolean failed, long latency) {
+    boolean bad = failed || latency > slow;
+    Circuit circuit = circuits.computeIfAbsent(endpoint, k -> new Circuit());
+    long now = OrbitalProperties.getCurrentTime();
+    synchronized (circuit) {
+      switch (circuit.state) {
+        case HALF_OPEN:
+          if (bad) {
+            trip(endpoint, circuit, now);
+          } else {
+            circuit.state = State.CLOSED;
+            circuit.windowStart = now;
+            circuit.requests = circuit.bad = 0;
+            log.info("Circuit closed: " + endpoint);
+          }
+          break;
+        case OPEN:
+          // Requests still in flight from before the circuit tripped
+          break;
+        case CLOSED:
+        default:
+          if (now - circuit.windowStart >= window) {
+            circuit.windowStart = now;
+            circuit.requests = circuit.bad = 0;
+          }
+          circuit.requests++;
+          if (bad) circuit.bad++;
+          if (circuit.requests >= minRequests && circuit.bad * 100 >= threshold * circuit.requests)
+            trip(endpoint, circuit, now);
+          break;
+      }
+    }
+  }
+
+  // Open a circuit.  Must hold circuit lock.
+  private void trip(Object endpoint, Circuit circuit, long now) {
+    circuit.state = State.OPEN;
+    circuit.until = now + open;
+    circuit.trips++;
+    log.warning("Circuit open for " + open + " ms: " + endpoint + " (" + circuit.bad + "/" + circuit.requests +
+                    " failed or slow)");
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("ESICircuitBreaker{");
+    boolean first = true;
+    for (Map.Entry<String, Circuit> next : sorted().entrySet()) {
+      Circuit circuit = next.getValue();
+      synchronized (circuit) {
+        if (circuit.state == State.CLOSED && circuit.trips == 0) continue;
+        if (!first) out.append(", ");
+        first = false;
+        out.append(next.getKey())
+           .append('=')
+           .append(circuit.state)
+           .append(" trips=")
+           .append(circuit.trips);
+      }
+    }
+    return out.append('}')
+              .toString();
+  }
+
+  private Map<String, Circuit> sorted() {
+    Map<String, Circuit> result = new TreeMap<>();
+    for (Map.Entry<Object, Circuit> next : circuits.entrySet())
+      result.put(String.valueOf(next.getKey()), next.getValue());
+    return result;
+  }
+
+}
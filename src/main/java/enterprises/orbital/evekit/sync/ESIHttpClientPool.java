@@ -0,0 +1,321 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.base.PersistentProperty;
+import enterprises.orbital.eve.esi.client.invoker.ApiClient;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide HTTP client for ESI requests.  Every ApiClient created here shares a single connection pool, so
+ * connections (and TLS sessions) are kept alive and reused across handlers, threads and API getters.  Each
+ * ApiClient receives its own lightweight copy of the shared OkHttpClient, so per-client settings never leak
+ * between callers while the pool remains shared.  Responses are transparently gzip compressed.
+ * <p>
+ * The remaining pages of paginated requests are fetched in parallel by an {@link ESIPagePrefetcher}.  Identical
+ * corporation requests may be coalesced by an {@link ESIRequestCoalescer}, and GET requests are served
+ * from the {@link ESIResponseCache} when possible.  Every remaining request passes through a single
+ * {@link ESIRateGovernor}, then concurrent requests to any single host are limited to a configurable number of
+ * connections.  Request outcomes feed the {@link DowntimeGate} and the per endpoint {@link ESICircuitBreaker}.  Connection reuse is tracked and
+ * reported by {@link #toString()}.
+ */
+public final class ESIHttpClientPool {
+  private static final Logger log = Logger.getLogger(ESIHttpClientPool.class.getName());
+  // User agent property
+  private static final String PROP_USER_AGENT = "enterprises.orbital.evekit.esi.user_agent";
+  private static final String DEF_USER_AGENT = "unknown-agent";
+  // Client connection timeout in milliseconds
+  private static final String PROP_CONNECT_TIMEOUT = "enterprises.orbital.evekit.esi.timeout.connect";
+  private static final long DEF_CONNECT_TIMEOUT = 60_000L;
+  // Client connection read timeout in milliseconds
+  private static final String PROP_READ_TIMEOUT = "enterprises.orbital.evekit.esi.timeout.read";
+  private static final long DEF_READ_TIMEOUT = 60_000L;
+  // Maximum idle connections retained in the pool
+  private static final String PROP_MAX_IDLE = "enterprises.orbital.evekit.esi.pool.max_idle";
+  private static final int DEF_MAX_IDLE = 32;
+  // Time an idle connection is kept alive in milliseconds
+  private static final String PROP_KEEP_ALIVE = "enterprises.orbital.evekit.esi.pool.keep_alive";
+  private static final long DEF_KEEP_ALIVE = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  // Maximum concurrent requests to a single host
+  private static final String PROP_MAX_PER_ROUTE = "enterprises.orbital.evekit.esi.pool.max_per_route";
+  private static final int DEF_MAX_PER_ROUTE = 20;
+  // Smallest timeout applied when an event deadline is near, in milliseconds
+  private static final long MIN_DEADLINE_TIMEOUT = 1_000L;
+
+  private static ESIHttpClientPool instance;
+  // Requests refused because the calling event's deadline had passed
+  private static final AtomicLong deadlineExceeded = new AtomicLong(0);
+
+  public static synchronized ESIHttpClientPool getInstance() {
+    if (instance == null) instance = new ESIHttpClientPool();
+    return instance;
+  }
+
+  private final OkHttpClient shared;
+  private final ConnectionPool pool;
+  private final String userAgent;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int maxPerRoute;
+  private final Map<String, Semaphore> routeLimits = new ConcurrentHashMap<>();
+  // Parallel fetch of paginated responses, applied first so prefetches pass through every other interceptor
+  private final ESIPagePrefetcher prefetcher;
+  // Corporation request coalescing, applied before the cache so followers share the leader's cached or fetched
+  // response
+  private final ESIRequestCoalescer coalescer;
+  // Response cache, applied before the governor so fresh hits consume no rate limit token
+  private final ESIResponseCache cache = new ESIResponseCache();
+  // Process-wide request rate limiter, applied before the per-route limit
+  private final ESIRateGovernor governor = new ESIRateGovernor();
+  // Per endpoint circuit breaker, applied last so latency excludes rate limit and connection waits
+  private final ESICircuitBreaker breaker = new ESICircuitBreaker();
+
+  // Connection reuse tracking.  Connections are weakly held so evicted connections are forgotten.
+  private final Set<Object> seenConnections = Collections.newSetFromMap(new WeakHashMap<>());
+  private final AtomicLong newConnections = new AtomicLong(0);
+  private final AtomicLong reusedConnections = new AtomicLong(0);
+
+  private ESIHttpClientPool() {
+    userAgent = OrbitalProperties.getGlobalProperty(PROP_USER_AGENT, DEF_USER_AGENT);
+    connectTimeout = (int) PersistentProperty.getLongPropertyWithFallback(PROP_CONNECT_TIMEOUT, DEF_CONNECT_TIMEOUT);
+    readTimeout = (int) PersistentProperty.getLongPropertyWithFallback(PROP_READ_TIMEOUT, DEF_READ_TIMEOUT);
+    maxPerRoute = Math.max(1, (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_PER_ROUTE, DEF_MAX_PER_ROUTE));
+    int maxIdle = (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_IDLE, DEF_MAX_IDLE);
+    long keepAlive = OrbitalProperties.getLongGlobalProperty(PROP_KEEP_ALIVE, DEF_KEEP_ALIVE);
+    pool = new ConnectionPool(maxIdle, keepAlive, TimeUnit.MILLISECONDS);
+    shared = new OkHttpClient();
+    shared.setConnectionPool(pool);
+    shared.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+    shared.setReadTimeout(readTimeout, TimeUnit.MILLISECONDS);
+    shared.setRetryOnConnectionFailure(true);
+    coalescer = new ESIRequestCoalescer(readTimeout);
+    prefetcher = new ESIPagePrefetcher(this::newHttpClient, (long) connectTimeout + readTimeout);
+    shared.interceptors()
+          .add(ESIHttpClientPool::enforceDeadline);
+    shared.interceptors()
+          .add(prefetcher);
+    shared.interceptors()
+          .add(coalescer);
+    shared.interceptors()
+          .add(cache);
+    shared.interceptors()
+          .add(governor);
+    shared.interceptors()
+          .add(this::limitRoute);
+    shared.interceptors()
+          .add(DowntimeGate.getInstance());
+    shared.interceptors()
+          .add(breaker);
+    shared.networkInterceptors()
+          .add(this::trackConnection);
+    log.info("ESI client pool: maxIdle=" + maxIdle + " keepAlive=" + keepAlive + " maxPerRoute=" + maxPerRoute);
+  }
+
+  /**
+   * Create a new ApiClient which uses the shared connection pool.
+   *
+   * @return a new ApiClient
+   */
+  public ApiClient newApiClient() {
+    ApiClient client = new ApiClient();
+    client.setHttpClient(newHttpClient());
+    client.setUserAgent(userAgent);
+    return client;
+  }
+
+  /**
+   * Create a copy of the shared OkHttpClient.  Copies share the connection pool and interceptors, but may be
+   * reconfigured (e.g. timeouts) without affecting other callers.  If the calling thread is running an event
+   * with a deadline, the copy's connect and read timeouts are reduced so a blocked request gives up by the
+   * deadline.
+   *
+   * @return a new OkHttpClient sharing the process-wide pool
+   */
+  public OkHttpClient newHttpClient() {
+    OkHttpClient client = shared.clone();
+    long remaining = ControllerEvent.remainingTime();
+    if (remaining < readTimeout)
+      client.setReadTimeout(Math.max(MIN_DEADLINE_TIMEOUT, remaining), TimeUnit.MILLISECONDS);
+    if (remaining < connectTimeout)
+      client.setConnectTimeout(Math.max(MIN_DEADLINE_TIMEOUT, remaining), TimeUnit.MILLISECONDS);
+    return client;
+  }
+
+  // Fail requests made after the deadline of the event run by the calling thread
+  private static Response enforceDeadline(Interceptor.Chain chain) throws IOException {
+    long remaining = ControllerEvent.remainingTime();
+    if (remaining <= 0) {
+      deadlineExceeded.incrementAndGet();
+      throw new InterruptedIOException("Event deadline passed " + (-remaining) + " ms ago, abandoning request");
+    }
+    return chain.proceed(chain.request());
+  }
+
+  public ESIResponseCache getCache() {
+    return cache;
+  }
+
+  public ESICircuitBreaker getBreaker() {
+    return breaker;
+  }
+
+  public ESIRateGovernor getGovernor() {
+    return governor;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  // Limit concurrent requests per host.  The permit is held until the response body is closed.  If a permit
+  // can not be obtained within the read timeout (e.g. a caller leaked a response body) the request proceeds
+  // anyway rather than stalling all ESI traffic.
+  private Response limitRoute(Interceptor.Chain chain) throws IOException {
+    String host = chain.request()
+                       .httpUrl()
+                       .host();
+    Semaphore limit = routeLimits.computeIfAbsent(host, k -> new Semaphore(maxPerRoute));
+    boolean acquired;
+    try {
+      acquired = limit.tryAcquire(readTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for connection");
+    }
+    if (!acquired) {
+      log.warning("Timed out waiting for connection to " + host + ", proceeding without limit");
+      return chain.proceed(chain.request());
+    }
+    AtomicBoolean released = new AtomicBoolean(false);
+    Runnable release = () -> {
+      if (released.compareAndSet(false, true)) limit.release();
+    };
+    try {
+      Response response = chain.proceed(chain.request());
+      if (response.body() == null || response.code() == 204 || response.code() == 304) {
+        release.run();
+        return response;
+      }
+      return response.newBuilder()
+                     .body(new ReleasingBody(response.body(), release))
+                     .build();
+    } catch (IOException | RuntimeException e) {
+      release.run();
+      throw e;
+    }
+  }
+
+  // Count new versus reused connections
+  private Response trackConnection(Interceptor.Chain chain) throws IOException {
+    Object connection = chain.connection();
+    if (connection != null) {
+      boolean added;
+      synchronized (seenConnections) {
+        added = seenConnections.add(connection);
+      }
+      if (added) newConnections.incrementAndGet();
+      else reusedConnections.incrementAndGet();
+    }
+    return chain.proceed(chain.request());
+  }
+
+  /**
+   * Return the fraction of requests which reused an existing connection.
+   *
+   * @return connection reuse rate between 0 and 1
+   */
+  public double getReuseRate() {
+    long reused = reusedConnections.get();
+    long total = reused + newConnections.get();
+    return total == 0 ? 0.0 : (double) reused / total;
+  }
+
+  @Override
+  public String toString() {
+    return "ESIHttpClientPool{" +
+        "connections=" + pool.getConnectionCount() +
+        ", idle=" + pool.getIdleConnectionCount() +
+        ", new=" + newConnections.get() +
+        ", reused=" + reusedConnections.get() +
+        ", reuseRate=" + String.format("%.3f", getReuseRate()) +
+        ", deadlineExceeded=" + deadlineExceeded.get() +
+        ", governor=" + governor +
+        ", prefetcher=" + prefetcher +
+        ", cache=" + cache +
+        ", coalescer=" + coalescer +
+        ", breaker=" + breaker +
+        '}';
+  }
+
+  // Response body which runs a callback once when closed
+  private static final class ReleasingBody extends ResponseBody {
+    private final ResponseBody delegate;
+    private final Runnable onClose;
+    private BufferedSource source;
+
+    ReleasingBody(ResponseBody delegate, Runnable onClose) {
+      this.delegate = delegate;
+      this.onClose = onClose;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override
+    public synchronized BufferedSource source() throws IOException {
+      if (source == null) source = Okio.buffer(new ForwardingSource(delegate.source()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            onClose.run();
+          }
+        }
+      });
+      return source;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        delegate.close();
+      } finally {
+        onClose.run();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,302 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetch the remaining pages of a paginated ESI endpoint in parallel.  Handlers request pages one after another:
+ * page 1 reports the page count in X-Pages, then each further page is requested when the previous one has been
+ * processed.  When this interceptor sees the first page of a GET with more than one page, it starts fetching
+ * pages 2 through N in the background with at most a fixed number in flight.  When the handler then requests
+ * one of those pages with the same credentials, it receives the prefetched response (waiting for it if it is
+ * still in flight) instead of making the request itself, so a sync of N pages costs roughly N / in-flight round
+ * trips rather than N.
+ * <p>
+ * Prefetches are made on behalf of the event which requested the first page, so they are bounded by its deadline,
+ * rate limited by the governor, and recorded by the response cache like the handler's own requests.  A page which
+ * could not be prefetched (error, rejection, or not finished before the caller's deadline) is requested by the
+ * handler as usual.  Prefetched pages which are never requested are discarded after a short time.
+ */
+public class ESIPagePrefetcher implements Interceptor {
+  private static final Logger log = Logger.getLogger(ESIPagePrefetcher.class.getName());
+  private static final String PROP_ENABLED = "enterprises.orbital.evekit.esi.pages.prefetch";
+  private static final boolean DEF_ENABLED = true;
+  // Maximum pages in flight for a single paginated request
+  private static final String PROP_MAX_IN_FLIGHT = "enterprises.orbital.evekit.esi.pages.max_in_flight";
+  private static final long DEF_MAX_IN_FLIGHT = 4;
+  // Maximum pages prefetched for a single paginated request, bounding the memory used by buffered pages.  Later
+  // pages are requested by the handler as usual.
+  private static final String PROP_MAX_PAGES = "enterprises.orbital.evekit.esi.pages.max_prefetch";
+  private static final long DEF_MAX_PAGES = 100;
+  // Threads shared by all prefetches
+  private static final String PROP_THREADS = "enterprises.orbital.evekit.esi.pages.threads";
+  private static final long DEF_THREADS = 16;
+  // Time in milliseconds a prefetched page is kept waiting for the handler to request it
+  private static final String PROP_UNCLAIMED_TTL = "enterprises.orbital.evekit.esi.pages.unclaimed_ttl";
+  private static final long DEF_UNCLAIMED_TTL = 60_000L;
+
+  private static final String HEADER_PAGES = "X-Pages";
+  private static final String PAGE_PARAMETER = "page";
+  // Marks requests made by the prefetcher itself
+  private static final Object PREFETCH_TAG = new Object();
+
+  // A buffered page response
+  private static final class Page {
+    final int code;
+    final String message;
+    final Headers headers;
+    final MediaType contentType;
+    final byte[] body;
+
+    Page(int code, String message, Headers headers, MediaType contentType, byte[] body) {
+      this.code = code;
+      this.message = message;
+      this.headers = headers;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  // A page being prefetched.  Completes with null if the page could not be prefetched.
+  private static final class Pending {
+    final CompletableFuture<Page> page = new CompletableFuture<>();
+    final long created = OrbitalProperties.getCurrentTime();
+  }
+
+  private final boolean enabled;
+  private final int maxInFlight;
+  private final int maxPages;
+  private final long unclaimedTTL;
+  private final long maxWait;
+  private final Supplier<OkHttpClient> clients;
+  private final ThreadPoolExecutor workers;
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+  // Statistics
+  private final AtomicLong triggers = new AtomicLong(0);
+  private final AtomicLong prefetched = new AtomicLong(0);
+  private final AtomicLong served = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+  private final AtomicLong discarded = new AtomicLong(0);
+
+  /**
+   * Create a prefetcher.
+   *
+   * @param clients source of clients for prefetch requests, called on the thread which requested the first page
+   * @param maxWait longest time in milliseconds a caller waits for a page in flight when its event has no deadline
+   */
+  ESIPagePrefetcher(Supplier<OkHttpClient> clients, long maxWait) {
+    this.clients = clients;
+    this.maxWait = maxWait;
+    enabled = OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED);
+    maxInFlight = (int) Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_MAX_IN_FLIGHT, DEF_MAX_IN_FLIGHT));
+    maxPages = (int) Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_MAX_PAGES, DEF_MAX_PAGES));
+    unclaimedTTL = OrbitalProperties.getLongGlobalProperty(PROP_UNCLAIMED_TTL, DEF_UNCLAIMED_TTL);
+    int threads = (int) Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_THREADS, DEF_THREADS));
+    AtomicInteger count = new AtomicInteger(0);
+    workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "esi-page-prefetch-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    workers.allowCoreThreadTimeOut(true);
+    log.info("ESI page prefetch: enabled=" + enabled + " maxInFlight=" + maxInFlight + " threads=" + threads);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!enabled || request.tag() == PREFETCH_TAG || !"GET".equals(request.method()))
+      return chain.proceed(request);
+    int page = pageOf(request.httpUrl());
+    if (page > 1) {
+      Response prefetched = claim(request);
+      if (prefetched != null) return prefetched;
+      return chain.proceed(request);
+    }
+    Response response = chain.proceed(request);
+    int pages = pageCount(response);
+    if (page == 1 && pages > 1 && response.code() == 200) start(request, pages);
+    return response;
+  }
+
+  // Start prefetching pages 2 through pages of a request, up to the prefetch limit
+  private void start(Request first, int pages) {
+    sweep();
+    int last = (int) Math.min(pages, 1L + maxPages);
+    List<Request> requests = new ArrayList<>(last - 1);
+    List<Pending> started = new ArrayList<>(last - 1);
+    for (int page = 2; page <= last; page++) {
+      Request next = first.newBuilder()
+                          .url(first.httpUrl()
+                                    .newBuilder()
+                                    .setQueryParameter(PAGE_PARAMETER, String.valueOf(page))
+                                    .build())
+                          .tag(PREFETCH_TAG)
+                          .build();
+      Pending entry = new Pending();
+      // A page already being prefetched (e.g. the first page was requested twice) is left alone
+      if (pending.putIfAbsent(key(next), entry) != null) continue;
+      requests.add(next);
+      started.add(entry);
+    }
+    if (requests.isEmpty()) return;
+    triggers.incrementAndGet();
+    // Taken here so prefetches inherit this thread's event deadline
+    OkHttpClient client = clients.get();
+    AtomicInteger nextIndex = new AtomicInteger(0);
+    Runnable worker = ControllerEvent.inheritCurrent(() -> {
+      int i;
+      while ((i = nextIndex.getAndIncrement()) < requests.size())
+        fetch(client, requests.get(i), started.get(i));
+    });
+    int workerCount = Math.min(maxInFlight, requests.size());
+    for (int i = 0; i < workerCount; i++) {
+      try {
+        workers.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // Pages not taken by a running worker are fetched by the handler itself
+        while ((i = nextIndex.getAndIncrement()) < requests.size())
+          started.get(i).page.complete(null);
+        return;
+      }
+    }
+  }
+
+  private void fetch(OkHttpClient client, Request request, Pending entry) {
+    Page result = null;
+    try {
+      Response response = client.newCall(request)
+                                .execute();
+      try {
+        if (response.code() == 200 && response.body() != null) {
+          byte[] body = response.body()
+                                .bytes();
+          result = new Page(response.code(), response.message(), response.headers(), response.body()
+                                                                                              .contentType(),
+                            body);
+        }
+      } finally {
+        if (response.body() != null) response.body()
+                                             .close();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.FINE, "Page prefetch failed, caller will retry: " + request.httpUrl()
+                                                                              .encodedPath(), e);
+    }
+    if (result != null) prefetched.incrementAndGet();
+    else failed.incrementAndGet();
+    entry.page.complete(result);
+  }
+
+  // Return the prefetched response for a request, or null if the caller should make the request itself
+  private Response claim(Request request) throws IOException {
+    Pending entry = pending.remove(key(request));
+    if (entry == null) return null;
+    long remaining = ControllerEvent.remainingTime();
+    long wait = remaining == Long.MAX_VALUE ? maxWait : Math.max(0L, remaining);
+    Page page;
+    try {
+      page = entry.page.get(wait, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for prefetched page");
+    } catch (ExecutionException | TimeoutException e) {
+      page = null;
+    }
+    if (page == null) return null;
+    served.incrementAndGet();
+    return new Response.Builder().request(request)
+                                 .protocol(Protocol.HTTP_1_1)
+                                 .code(page.code)
+                                 .message(page.message)
+                                 .headers(page.headers)
+                                 .body(ResponseBody.create(page.contentType, page.body))
+                                 .build();
+  }
+
+  // Discard prefetched pages which were never requested
+  private void sweep() {
+    long cutoff = OrbitalProperties.getCurrentTime() - unclaimedTTL;
+    for (Iterator<Pending> it = pending.values()
+                                       .iterator(); it.hasNext(); ) {
+      if (it.next().created < cutoff) {
+        it.remove();
+        discarded.incrementAndGet();
+      }
+    }
+  }
+
+  // Page requested by a URL.  Requests without a page parameter return the first page.
+  private static int pageOf(HttpUrl url) {
+    String value = url.queryParameter(PAGE_PARAMETER);
+    if (value == null) return 1;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static int pageCount(Response response) {
+    String value = response.header(HEADER_PAGES);
+    if (value == null) return 1;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  // Key for a page request, independent of query parameter order and specific to the request's credentials
+  private static String key(Request request) {
+    HttpUrl url = request.httpUrl();
+    Map<String, List<String>> params = new TreeMap<>();
+    for (String name : url.queryParameterNames())
+      params.put(name, url.queryParameterValues(name));
+    return url.scheme() + "://" + url.host() + ":" + url.port() + url.encodedPath() + "?" + params + "|" +
+        request.header("Authorization");
+  }
+
+  @Override
+  public String toString() {
+    return "ESIPagePrefetcher{" +
+        "triggers=" + triggers.get() +
+        ", prefetched=" + prefetched.get() +
+        ", served=" + served.get() +
+        ", failed=" + failed.get() +
+        ", discarded=" + discarded.get() +
+        ", waiting=" + pending.size() +
+        '}';
+  }
+}
@@ -0,0 +1,293 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide rate limiter for ESI requests.  All requests take a token from a single token bucket.  The refill
+ * rate adapts to the ESI error budget reported in the X-Esi-Error-Limit-Remain and X-Esi-Error-Limit-Reset
+ * headers: the rate increases additively, at most once per second, as requests succeed while the budget is healthy,
+ * and is halved when errors consume the budget below a backoff level, or when ESI responds with 420 (error
+ * limited).  An idle governor does not increase its rate, so traffic after a quiet period starts at the rate last
+ * probed.  Individual errors do not reduce the rate
+ * while the budget remains healthy.  When the remaining budget
+ * falls below a threshold, all requests wait until the error window resets.
+ * <p>
+ * Waiting requests are served in arrival order and are woken when they reach the head of the queue.  A request
+ * made on behalf of an event never waits past the event's deadline (see {@link ControllerEvent#remainingTime()}).
+ */
+public class ESIRateGovernor implements Interceptor {
+  private static final Logger log = Logger.getLogger(ESIRateGovernor.class.getName());
+  // Initial process-wide request rate (requests per second).  Separate from sync.default_esi_rate, which
+  // configures each handler's own limiter.
+  private static final String PROP_START_RATE = "enterprises.orbital.evekit.esi.governor.start_rate";
+  private static final long DEF_START_RATE = 3;
+  // Remaining error budget below which all requests wait for the error window to reset
+  private static final String PROP_ERROR_LIMIT_REMAIN = "enterprises.orbital.evekit.esi.governor.error_limit_remain";
+  private static final long DEF_ERROR_LIMIT_REMAIN = 5;
+  // Rate bounds and additive increase per second of successful traffic (requests per second)
+  private static final String PROP_MIN_RATE = "enterprises.orbital.evekit.esi.governor.min_rate";
+  private static final long DEF_MIN_RATE = 1;
+  private static final String PROP_MAX_RATE = "enterprises.orbital.evekit.esi.governor.max_rate";
+  private static final long DEF_MAX_RATE = 150;
+  private static final String PROP_INCREASE = "enterprises.orbital.evekit.esi.governor.increase";
+  private static final long DEF_INCREASE = 1;
+  // Remaining error budget below which the rate is decreased
+  private static final String PROP_BACKOFF_REMAIN = "enterprises.orbital.evekit.esi.governor.backoff_remain";
+  private static final long DEF_BACKOFF_REMAIN = 50;
+
+  // Error limit headers
+  private static final String HEADER_REMAIN = "X-Esi-Error-Limit-Remain";
+  private static final String HEADER_RESET = "X-Esi-Error-Limit-Reset";
+  // Window used when ESI reports 420 without a reset header
+  private static final long DEFAULT_RESET = TimeUnit.NANOSECONDS.convert(60, TimeUnit.SECONDS);
+  private static final long ONE_SECOND = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
+
+  private final double minRate;
+  private final double maxRate;
+  private final double increase;
+  private final long errorLimitRemain;
+  private final long backoffRemain;
+
+  // Guards all token bucket and waiter state
+  private final ReentrantLock lock = new ReentrantLock();
+  // Requests waiting for a token, in arrival order
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+  // Token bucket state
+  private double rate;
+  private double tokens;
+  private long lastRefill;
+  // Earliest times of the next additive increase and the next decrease
+  private long nextIncrease;
+  private long nextDecrease;
+  // All requests wait until this time if non-zero
+  private long blockedUntil;
+  // Last error budget reported by ESI
+  private long lastRemain = -1;
+
+  // Statistics
+  private final AtomicLong requests = new AtomicLong(0);
+  private final AtomicLong waitNanos = new AtomicLong(0);
+  private final AtomicLong decreases = new AtomicLong(0);
+  private final AtomicLong errorLimited = new AtomicLong(0);
+  private final AtomicLong blocks = new AtomicLong(0);
+  private final AtomicLong deadlineExceeded = new AtomicLong(0);
+
+  ESIRateGovernor() {
+    minRate = Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_MIN_RATE, DEF_MIN_RATE));
+    maxRate = Math.max(minRate, OrbitalProperties.getLongGlobalProperty(PROP_MAX_RATE, DEF_MAX_RATE));
+    increase = OrbitalProperties.getLongGlobalProperty(PROP_INCREASE, DEF_INCREASE);
+    errorLimitRemain = OrbitalProperties.getLongGlobalProperty(PROP_ERROR_LIMIT_REMAIN, DEF_ERROR_LIMIT_REMAIN);
+    backoffRemain = OrbitalProperties.getLongGlobalProperty(PROP_BACKOFF_REMAIN, DEF_BACKOFF_REMAIN);
+    rate = Math.min(maxRate, Math.max(minRate, OrbitalProperties.getLongGlobalProperty(PROP_START_RATE,
+                                                                                       DEF_START_RATE)));
+    tokens = 1;
+    lastRefill = nextIncrease = nextDecrease = System.nanoTime();
+    log.info("ESI rate governor: rate=" + rate + " min=" + minRate + " max=" + maxRate);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    acquire();
+    Response response = chain.proceed(chain.request());
+    observe(response);
+    return response;
+  }
+
+  // A request waiting for a token
+  private static final class Waiter {
+    final Condition turn;
+
+    Waiter(Condition turn) {
+      this.turn = turn;
+    }
+  }
+
+  // Block until a token is available and requests are not blocked by the error limit.  Waiters are served in
+  // arrival order: only the head of the queue waits for the next token, the rest wait to be signalled when they
+  // reach the head.  Waits are bounded by the deadline of the event making the request.
+  private void acquire() throws InterruptedIOException {
+    long start = System.nanoTime();
+    long remaining = ControllerEvent.remainingTime();
+    long deadline = remaining == Long.MAX_VALUE ? Long.MAX_VALUE :
+        start + TimeUnit.NANOSECONDS.convert(Math.max(0L, remaining), TimeUnit.MILLISECONDS);
+    Waiter me = null;
+    lock.lock();
+    try {
+      while (true) {
+        long now = System.nanoTime();
+        if (me == null && waiters.isEmpty() || waiters.peekFirst() == me) {
+          refill(now);
+          long wait;
+          if (blockedUntil != 0 && now - blockedUntil < 0) {
+            wait = blockedUntil - now;
+          } else {
+            blockedUntil = 0;
+            if (tokens >= 1) {
+              tokens -= 1;
+              break;
+            }
+            wait = (long) ((1 - tokens) / rate * ONE_SECOND);
+          }
+          if (deadline != Long.MAX_VALUE && now + wait - deadline > 0) {
+            deadlineExceeded.incrementAndGet();
+            throw new InterruptedIOException("ESI rate limit wait of " +
+                                                 TimeUnit.MILLISECONDS.convert(wait, TimeUnit.NANOSECONDS) +
+                                                 " ms would pass event deadline, abandoning request");
+          }
+          if (me == null) {
+            me = new Waiter(lock.newCondition());
+            waiters.addLast(me);
+          }
+          me.turn.awaitNanos(Math.max(1L, wait));
+        } else {
+          if (me == null) {
+            me = new Waiter(lock.newCondition());
+            waiters.addLast(me);
+          }
+          if (deadline == Long.MAX_VALUE) {
+            me.turn.await();
+          } else if (deadline - now <= 0) {
+            deadlineExceeded.incrementAndGet();
+            throw new InterruptedIOException("Event deadline passed waiting for ESI rate limit, abandoning request");
+          } else {
+            me.turn.awaitNanos(deadline - now);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for ESI rate limit");
+    } finally {
+      // Leave the queue whether a token was taken or the wait was abandoned, and wake the next waiter
+      if (me != null) {
+        boolean head = waiters.peekFirst() == me;
+        waiters.remove(me);
+        if (head) signalHead();
+      }
+      lock.unlock();
+      requests.incrementAndGet();
+      waitNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  // Wake the waiter at the head of the queue so it can take the next token.  Must hold lock.
+  private void signalHead() {
+    Waiter head = waiters.peekFirst();
+    if (head != null) head.turn.signal();
+  }
+
+  // Add tokens for elapsed time.  Must hold lock.
+  private void refill(long now) {
+    double elapsed = (double) (now - lastRefill) / ONE_SECOND;
+    lastRefill = now;
+    // Allow a burst of at most one second of requests
+    tokens = Math.min(Math.max(1, rate), tokens + elapsed * rate);
+  }
+
+  // Increase the rate additively, at most once per second.  Must hold lock.
+  private void increase(long now) {
+    if (now - nextIncrease < 0) return;
+    rate = Math.min(maxRate, rate + increase);
+    nextIncrease = now + ONE_SECOND;
+  }
+
+  // Halve the rate, at most once per second.  Must hold lock.
+  private void decrease(long now) {
+    if (now - nextDecrease < 0) return;
+    rate = Math.max(minRate, rate / 2);
+    tokens = Math.min(tokens, 1);
+    // Hold off additive increase for a full second
+    nextDecrease = nextIncrease = now + ONE_SECOND;
+    decreases.incrementAndGet();
+  }
+
+  // Adjust the rate from ESI's error limit headers and the response status
+  private void observe(Response response) {
+    long remain = parseHeader(response, HEADER_REMAIN);
+    long reset = parseHeader(response, HEADER_RESET);
+    int code = response.code();
+    lock.lock();
+    try {
+      long now = System.nanoTime();
+      boolean consumed = remain >= 0 && lastRemain >= 0 && remain < lastRemain;
+      if (remain >= 0) lastRemain = remain;
+      if (code == 420) {
+        errorLimited.incrementAndGet();
+        block(now, reset >= 0 ? TimeUnit.NANOSECONDS.convert(reset, TimeUnit.SECONDS) : DEFAULT_RESET);
+        decrease(now);
+      } else if (remain >= 0 && remain < errorLimitRemain) {
+        block(now, reset >= 0 ? TimeUnit.NANOSECONDS.convert(reset, TimeUnit.SECONDS) : DEFAULT_RESET);
+        decrease(now);
+      } else if (consumed && remain < backoffRemain) {
+        // Errors are eating into the budget faster than it is being replenished
+        decrease(now);
+      } else if (code < 400 && (remain < 0 || remain >= backoffRemain)) {
+        // Probe for more capacity only with traffic which is succeeding
+        increase(now);
+      }
+      // The head waiter recomputes its wait after a change in rate or a block
+      signalHead();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Block all requests for the given interval.  Must hold lock.
+  private void block(long now, long interval) {
+    long until = now + Math.max(ONE_SECOND, interval);
+    if (blockedUntil == 0 || until - blockedUntil > 0) {
+      blockedUntil = until;
+      blocks.incrementAndGet();
+      log.warning("ESI error budget exhausted, blocking requests for " +
+                      TimeUnit.MILLISECONDS.convert(until - now, TimeUnit.NANOSECONDS) + " ms");
+    }
+  }
+
+  private static long parseHeader(Response response, String name) {
+    String value = response.header(name);
+    if (value == null) return -1;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public double getRate() {
+    lock.lock();
+    try {
+      return rate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    long count = requests.get();
+    return "ESIRateGovernor{" +
+        "rate=" + String.format("%.1f", getRate()) +
+        ", requests=" + count +
+        ", meanWaitMs=" + (count == 0 ? 0 : TimeUnit.MILLISECONDS.convert(waitNanos.get() / count,
+                                                                          TimeUnit.NANOSECONDS)) +
+        ", decreases=" + decreases.get() +
+        ", blocks=" + blocks.get() +
+        ", errorLimited=" + errorLimited.get() +
+        ", deadlineExceeded=" + deadlineExceeded.get() +
+        ", lastRemain=" + lastRemain +
+        '}';
+  }
+
+}
@@ -0,0 +1,172 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Coalesce identical corporation endpoint requests made on behalf of different accounts.  Every synchronized
+ * account for a corporation syncs the same corporation endpoints, so several directors of one corporation would
+ * otherwise download identical data.  The first request for a given URL (ignoring the access token) is sent to
+ * ESI.  Identical requests which arrive while it is in flight, or within a short window after it completes,
+ * receive a copy of its response instead.  Each account still transforms and stores the shared response itself.
+ * <p>
+ * Only successful responses are shared.  If the first request fails (e.g. its character lacks the required
+ * roles) waiting requests are sent to ESI with their own credentials.  Coalescing means a follower's credentials
+ * are not checked by ESI for the shared response, so coalescing is disabled by default and should only be enabled
+ * where every account synchronizing a corporation is known to hold the roles the corporation endpoints require.
+ */
+public class ESIRequestCoalescer implements Interceptor {
+  private static final Logger log = Logger.getLogger(ESIRequestCoalescer.class.getName());
+  private static final String PROP_ENABLED = "enterprises.orbital.evekit.esi.coalesce.enabled";
+  private static final boolean DEF_ENABLED = false;
+  // Time in milliseconds a completed response remains shareable
+  private static final String PROP_WINDOW = "enterprises.orbital.evekit.esi.coalesce.window";
+  private static final long DEF_WINDOW = 5_000L;
+  // Requests eligible for coalescing
+  private static final Pattern CORPORATION_PATH = Pattern.compile("^/[^/]+/corporations/\\d+/.+");
+  // Completed entries are swept after this many new in-flight requests
+  private static final int SWEEP_INTERVAL = 256;
+
+  // A shared response.  The snapshot is null until the request completes, and remains null if it failed.
+  private static final class InFlight {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile Snapshot snapshot;
+    volatile long completed = Long.MAX_VALUE;
+  }
+
+  private static final class Snapshot {
+    final int code;
+    final String message;
+    final Headers headers;
+    final MediaType contentType;
+    final byte[] body;
+
+    Snapshot(int code, String message, Headers headers, MediaType contentType, byte[] body) {
+      this.code = code;
+      this.message = message;
+      this.headers = headers;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  private final boolean enabled;
+  private final long window;
+  private final long waitTimeout;
+  private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong leaders = new AtomicLong(0);
+  private final AtomicLong coalesced = new AtomicLong(0);
+
+  /**
+   * Create a coalescer.
+   *
+   * @param waitTimeout maximum time in milliseconds a request waits for an identical in-flight request
+   */
+  ESIRequestCoalescer(long waitTimeout) {
+    enabled = OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED);
+    window = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_WINDOW, DEF_WINDOW));
+    this.waitTimeout = waitTimeout;
+    log.info("ESI request coalescing: enabled=" + enabled + " window=" + window);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!enabled || !"GET".equals(request.method()) || !CORPORATION_PATH.matcher(request.httpUrl()
+                                                                                          .encodedPath())
+                                                                             .matches())
+      return chain.proceed(request);
+    String key = ESIResponseCache.cacheKey(request.httpUrl());
+    InFlight mine = new InFlight();
+    while (true) {
+      InFlight current = inFlight.putIfAbsent(key, mine);
+      if (current == null) break;
+      if (current.completed != Long.MAX_VALUE && System.currentTimeMillis() - current.completed > window) {
+        // Expired, try to replace it
+        if (inFlight.replace(key, current, mine)) break;
+        continue;
+      }
+      Snapshot shared = await(current);
+      if (shared == null) return chain.proceed(request);
+      coalesced.incrementAndGet();
+      return fromSnapshot(request, shared);
+    }
+    leaders.incrementAndGet();
+    if (leaders.get() % SWEEP_INTERVAL == 0) sweep();
+    try {
+      Response response = chain.proceed(request);
+      if (response.code() != 200 || response.body() == null) return response;
+      byte[] body = response.body()
+                            .bytes();
+      MediaType contentType = response.body()
+                                      .contentType();
+      mine.snapshot = new Snapshot(response.code(), response.message(), response.headers(), contentType, body);
+      return response.newBuilder()
+                     .body(ResponseBody.create(contentType, body))
+                     .build();
+    } finally {
+      mine.completed = System.currentTimeMillis();
+      mine.done.countDown();
+      if (window == 0 || mine.snapshot == null) inFlight.remove(key, mine);
+    }
+  }
+
+  // Wait for an in-flight request.  Returns null if it failed or did not finish in time.
+  private Snapshot await(InFlight current) throws InterruptedIOException {
+    try {
+      return current.done.await(waitTimeout, TimeUnit.MILLISECONDS) ? current.snapshot : null;
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException("Interrupted waiting for coalesced request");
+    }
+  }
+
+  private static Response fromSnapshot(Request request, Snapshot snapshot) {
+    return new Response.Builder().request(request)
+                                 .protocol(Protocol.HTTP_1_1)
+                                 .code(snapshot.code)
+                                 .message(snapshot.message)
+                                 .headers(snapshot.headers)
+                                 .body(ResponseBody.create(snapshot.contentType, snapshot.body))
+                                 .build();
+  }
+
+  // Remove completed entries whose window has passed
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    for (Iterator<InFlight> it = inFlight.values()
+                                         .iterator(); it.hasNext(); ) {
+      InFlight next = it.next();
+      if (next.completed != Long.MAX_VALUE && now - next.completed > window) it.remove();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ESIRequestCoalescer{" +
+        "enabled=" + enabled +
+        ", inFlight=" + inFlight.size() +
+        ", leaders=" + leaders.get() +
+        ", coalesced=" + coalesced.get() +
+        '}';
+  }
+
+}
@@ -0,0 +1,496 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of ESI GET responses which honours ETag and Expires.  Requests for a cached entry which is still
+ * fresh (and was fetched with the same credentials) are answered from the cache without a network request.  Stale
+ * entries with an ETag are revalidated with If-None-Match, and a 304 response is answered from the cache.
+ * Entries are keyed by URL without the access token, so revalidation continues to work as tokens are refreshed.
+ * <p>
+ * Entries are evicted least recently used first when the cache exceeds its size bound.  If a spill directory is
+ * configured, evicted entries are written there and reloaded on demand.
+ * <p>
+ * Callers can capture the cache keys used while synchronizing some context (e.g. an account endpoint) with
+ * {@link #beginCapture(Object)} and later ask whether every captured response is still fresh with
+ * {@link #freshUntil(Object)}.  {@link #endCapture(Object)} also reports whether any captured response differed
+ * from the cached copy, which callers use to tell whether a sync saw changed data.  Hit ratios are tracked per
+ * endpoint path.
+ */
+public class ESIResponseCache implements Interceptor {
+  private static final Logger log = Logger.getLogger(ESIResponseCache.class.getName());
+  // Maximum bytes of response bodies held in memory.  Zero disables the cache.
+  private static final String PROP_MAX_BYTES = "enterprises.orbital.evekit.esi.cache.max_bytes";
+  private static final long DEF_MAX_BYTES = 64L * 1024L * 1024L;
+  // Largest single response which will be cached
+  private static final String PROP_MAX_ENTRY_BYTES = "enterprises.orbital.evekit.esi.cache.max_entry_bytes";
+  private static final long DEF_MAX_ENTRY_BYTES = 4L * 1024L * 1024L;
+  // Directory for entries evicted from memory.  Empty disables spilling.
+  private static final String PROP_SPILL_DIR = "enterprises.orbital.evekit.esi.cache.spill_dir";
+  private static final String DEF_SPILL_DIR = "";
+  private static final String PROP_SPILL_MAX_BYTES = "enterprises.orbital.evekit.esi.cache.spill_max_bytes";
+  private static final long DEF_SPILL_MAX_BYTES = 512L * 1024L * 1024L;
+
+  private static final String TOKEN_PARAMETER = "token";
+  // Numeric path segments are collapsed when computing the per-endpoint statistics label
+  private static final Pattern ID_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+
+  // A cached response
+  private static final class Entry {
+    final String key;
+    final String etag;
+    final long expires;
+    final String fingerprint;
+    final String contentType;
+    final Headers headers;
+    final byte[] body;
+
+    Entry(String key, String etag, long expires, String fingerprint, String contentType, Headers headers,
+          byte[] body) {
+      this.key = key;
+      this.etag = etag;
+      this.expires = expires;
+      this.fingerprint = fingerprint;
+      this.contentType = contentType;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  // Per endpoint statistics
+  private static final class Stats {
+    final AtomicLong hits = new AtomicLong(0);
+    final AtomicLong revalidated = new AtomicLong(0);
+    final AtomicLong misses = new AtomicLong(0);
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final Path spillDir;
+  private final long spillMaxBytes;
+  private final AtomicLong spilledBytes = new AtomicLong(0);
+
+  // LRU map, guarded by itself
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes;
+
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+  // Keys captured for an event, and whether any captured response changed.  Requests for an event may be made on
+  // several threads.
+  private static final class Capture {
+    final Set<String> keys = Collections.synchronizedSet(new LinkedHashSet<>());
+    volatile boolean changed;
+  }
+
+  // Capture in progress per event (or per thread for requests made outside an event)
+  private final Map<Object, Capture> capture = new ConcurrentHashMap<>();
+  // Keys captured per context
+  private final Map<Object, List<String>> captured = new ConcurrentHashMap<>();
+
+  ESIResponseCache() {
+    maxBytes = OrbitalProperties.getLongGlobalProperty(PROP_MAX_BYTES, DEF_MAX_BYTES);
+    maxEntryBytes = OrbitalProperties.getLongGlobalProperty(PROP_MAX_ENTRY_BYTES, DEF_MAX_ENTRY_BYTES);
+    spillMaxBytes = OrbitalProperties.getLongGlobalProperty(PROP_SPILL_MAX_BYTES, DEF_SPILL_MAX_BYTES);
+    String dir = OrbitalProperties.getGlobalProperty(PROP_SPILL_DIR, DEF_SPILL_DIR);
+    spillDir = dir == null || dir.trim()
+                                 .isEmpty() ? null : prepareSpillDir(Paths.get(dir.trim()));
+    log.info("ESI response cache: maxBytes=" + maxBytes + " spill=" + spillDir);
+  }
+
+  // Create or empty the spill directory.  Returns null if the directory can not be used.
+  private static Path prepareSpillDir(Path dir) {
+    try {
+      Files.createDirectories(dir);
+      try (DirectoryStream<Path> old = Files.newDirectoryStream(dir, "*.entry")) {
+        for (Path next : old)
+          Files.deleteIfExists(next);
+      }
+      return dir;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to use cache spill directory, spilling disabled: " + dir, e);
+      return null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  // Requests are captured for the event being run, including requests made on other threads on its behalf
+  private static Object captureOwner() {
+    ControllerEvent ev = ControllerEvent.current();
+    return ev != null ? ev : Thread.currentThread();
+  }
+
+  /**
+   * Start recording the cache keys of requests made on behalf of the given context by the event run by the
+   * current thread, including requests the event makes from other threads (see
+   * {@link ControllerEvent#inheritCurrent(Runnable)}).  If the current thread is not running an event, only
+   * requests made by the current thread are recorded.
+   *
+   * @param context context, e.g. an account and endpoint
+   */
+  public void beginCapture(Object context) {
+    if (!isEnabled()) return;
+    capture.put(captureOwner(), new Capture());
+    captured.remove(context);
+  }
+
+  /**
+   * Stop recording and associate the recorded keys with the given context.  A response is unchanged if it was
+   * served from the cache, revalidated with a 304, or downloaded with the same ETag or body as the cached copy.
+   *
+   * @param context context passed to beginCapture
+   * @return true if any captured response changed or could not be compared (including when the cache is
+   * disabled or nothing was captured), false if every captured response was unchanged.
+   */
+  public boolean endCapture(Object context) {
+    Capture current = capture.remove(captureOwner());
+    if (current == null) return true;
+    List<String> keys;
+    synchronized (current.keys) {
+      keys = new ArrayList<>(current.keys);
+    }
+    if (keys.isEmpty()) return true;
+    captured.put(context, keys);
+    return current.changed;
+  }
+
+  /**
+   * Forget the keys captured for a context.
+   *
+   * @param context context passed to beginCapture
+   */
+  public void forget(Object context) {
+    captured.remove(context);
+  }
+
+  /**
+   * Return the time until which every response captured for a context remains fresh.
+   *
+   * @param context context passed to beginCapture
+   * @return earliest expiry of the captured responses, or 0 if nothing was captured or any response is stale or
+   * no longer cached.
+   */
+  public long freshUntil(Object context) {
+    List<String> keys = captured.get(context);
+    if (keys == null) return 0;
+    long now = OrbitalProperties.getCurrentTime();
+    long until = Long.MAX_VALUE;
+    for (String key : keys) {
+      Entry entry = lookup(key);
+      if (entry == null || entry.expires <= now) return 0;
+      until = Math.min(until, entry.expires);
+    }
+    return until;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!isEnabled() || !"GET".equals(request.method()) || request.header("If-None-Match") != null)
+      return chain.proceed(request);
+    String key = cacheKey(request.httpUrl());
+    String fingerprint = fingerprint(request);
+    Stats endpointStats = stats.computeIfAbsent(label(request.httpUrl()), k -> new Stats());
+    Capture capturing = capture.get(captureOwner());
+    if (capturing != null) capturing.keys.add(key);
+
+    Entry entry = lookup(key);
+    long now = OrbitalProperties.getCurrentTime();
+    if (entry != null && entry.expires > now && entry.fingerprint.equals(fingerprint)) {
+      endpointStats.hits.incrementAndGet();
+      return fromEntry(request, entry);
+    }
+    if (entry != null && entry.etag != null)
+      request = request.newBuilder()
+                       .header("If-None-Match", entry.etag)
+                       .build();
+    Response response = chain.proceed(request);
+    if (response.code() == 304 && entry != null) {
+      // Credentials were accepted and content is unchanged.  Serve the cached body with the revalidated headers
+      // so callers see the new expiry.
+      closeQuietly(response);
+      String etag = response.header("ETag");
+      Entry revalidated = new Entry(key, etag != null ? etag : entry.etag, parseExpires(response, now), fingerprint,
+                                    entry.contentType, mergeHeaders(entry.headers, response.headers()), entry.body);
+      store(revalidated);
+      endpointStats.revalidated.incrementAndGet();
+      return fromEntry(chain.request(), revalidated);
+    }
+    endpointStats.misses.incrementAndGet();
+    if (response.code() != 200 || response.body() == null) return changed(capturing, response);
+    String etag = response.header("ETag");
+    long expires = parseExpires(response, now);
+    long length = response.body()
+                          .contentLength();
+    if ((etag == null && expires <= now) || length > maxEntryBytes) return changed(capturing, response);
+    byte[] body = response.body()
+                          .bytes();
+    if (capturing != null && (entry == null || !(etag != null && etag.equals(entry.etag) ||
+        Arrays.equals(body, entry.body))))
+      capturing.changed = true;
+    MediaType contentType = response.body()
+                                    .contentType();
+    if (body.length <= maxEntryBytes)
+      store(new Entry(key, etag, expires, fingerprint, contentType == null ? null : contentType.toString(),
+                      response.headers(), body));
+    return response.newBuilder()
+                   .request(chain.request())
+                   .body(ResponseBody.create(contentType, body))
+                   .build();
+  }
+
+  // Record a response which could not be compared with a cached copy
+  private static Response changed(Capture capturing, Response response) {
+    if (capturing != null) capturing.changed = true;
+    return response;
+  }
+
+  // Update stored headers with those from a 304 response, as a cache would (RFC 7234 4.3.4).  Headers which
+  // describe the stored body are kept.
+  static Headers mergeHeaders(Headers stored, Headers updated) {
+    Headers.Builder merged = stored.newBuilder();
+    for (String name : updated.names()) {
+      if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Content-Type") ||
+          name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding"))
+        continue;
+      merged.removeAll(name);
+      for (String value : updated.values(name))
+        merged.add(name, value);
+    }
+    return merged.build();
+  }
+
+  private static void closeQuietly(Response response) {
+    try {
+      if (response.body() != null) response.body()
+                                           .close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private static Response fromEntry(Request request, Entry entry) {
+    return new Response.Builder().request(request)
+                                 .protocol(Protocol.HTTP_1_1)
+                                 .code(200)
+                                 .message("OK")
+                                 .headers(entry.headers)
+                                 .body(ResponseBody.create(
+                                     entry.contentType == null ? null : MediaType.parse(entry.contentType),
+                                     entry.body))
+                                 .build();
+  }
+
+  private static long parseExpires(Response response, long now) {
+    String value = response.header("Expires");
+    if (value == null) return now;
+    Date expires = com.squareup.okhttp.internal.http.HttpDate.parse(value);
+    return expires == null ? now : expires.getTime();
+  }
+
+  // URL without the access token
+  static String cacheKey(HttpUrl url) {
+    return url.newBuilder()
+              .removeAllQueryParameters(TOKEN_PARAMETER)
+              .build()
+              .toString();
+  }
+
+  // Endpoint label for statistics, e.g. /v1/characters/{id}/medals/
+  private static String label(HttpUrl url) {
+    return ID_SEGMENT.matcher(url.encodedPath())
+                     .replaceAll("/{id}");
+  }
+
+  // Hash of the credentials used for a request
+  private static String fingerprint(Request request) {
+    String token = request.httpUrl()
+                          .queryParameter(TOKEN_PARAMETER);
+    String auth = request.header("Authorization");
+    return sha256(String.valueOf(token) + "|" + String.valueOf(auth));
+  }
+
+  private static String sha256(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+                                   .digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Entry lookup(String key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null || spillDir == null) return entry;
+    }
+    Entry spilled = unspill(key);
+    if (spilled != null) store(spilled);
+    return spilled;
+  }
+
+  private void store(Entry entry) {
+    List<Entry> evicted = new ArrayList<>();
+    synchronized (entries) {
+      Entry old = entries.put(entry.key, entry);
+      if (old != null) bytes -= old.body.length;
+      bytes += entry.body.length;
+      Iterator<Entry> it = entries.values()
+                                  .iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        Entry next = it.next();
+        it.remove();
+        bytes -= next.body.length;
+        evicted.add(next);
+      }
+    }
+    if (spillDir != null)
+      for (Entry next : evicted)
+        spill(next);
+  }
+
+  private Path spillPath(String key) {
+    return spillDir.resolve(sha256(key) + ".entry");
+  }
+
+  private void spill(Entry entry) {
+    if (spilledBytes.get() + entry.body.length > spillMaxBytes) return;
+    try (OutputStream file = Files.newOutputStream(spillPath(entry.key));
+         DataOutputStream out = new DataOutputStream(file)) {
+      out.writeUTF(entry.key);
+      out.writeUTF(entry.etag == null ? "" : entry.etag);
+      out.writeLong(entry.expires);
+      out.writeUTF(entry.fingerprint);
+      out.writeUTF(entry.contentType == null ? "" : entry.contentType);
+      out.writeInt(entry.headers.size());
+      for (int i = 0; i < entry.headers.size(); i++) {
+        out.writeUTF(entry.headers.name(i));
+        out.writeUTF(entry.headers.value(i));
+      }
+      out.writeInt(entry.body.length);
+      out.write(entry.body);
+      spilledBytes.addAndGet(entry.body.length);
+    } catch (IOException e) {
+      log.log(Level.FINE, "Failed to spill cache entry: " + entry.key, e);
+    }
+  }
+
+  private Entry unspill(String key) {
+    Path path = spillPath(key);
+    if (!Files.exists(path)) return null;
+    try {
+      Entry entry;
+      try (InputStream file = Files.newInputStream(path);
+           DataInputStream in = new DataInputStream(file)) {
+        if (!key.equals(in.readUTF())) return null;
+        String etag = in.readUTF();
+        long expires = in.readLong();
+        String fingerprint = in.readUTF();
+        String contentType = in.readUTF();
+        Headers.Builder headers = new Headers.Builder();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+          headers.add(in.readUTF(), in.readUTF());
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        entry = new Entry(key, etag.isEmpty() ? null : etag, expires, fingerprint,
+                          contentType.isEmpty() ? null : contentType, headers.build(), body);
+      }
+      Files.deleteIfExists(path);
+      spilledBytes.addAndGet(-entry.body.length);
+      return entry;
+    } catch (IOException e) {
+      log.log(Level.FINE, "Failed to load spilled cache entry: " + key, e);
+      return null;
+    }
+  }
+
+  /**
+   * Return the fraction of requests for an endpoint label which were answered from the cache, either fresh or
+   * after revalidation.
+   *
+   * @param label endpoint label, e.g. /v1/characters/{id}/medals/
+   * @return hit ratio between 0 and 1
+   */
+  public double getHitRatio(String label) {
+    Stats s = stats.get(label);
+    if (s == null) return 0.0;
+    long hits = s.hits.get() + s.revalidated.get();
+    long total = hits + s.misses.get();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("ESIResponseCache{");
+    synchronized (entries) {
+      out.append("entries=")
+         .append(entries.size())
+         .append(", bytes=")
+         .append(bytes);
+    }
+    out.append(", spilledBytes=")
+       .append(spilledBytes.get());
+    for (Map.Entry<String, Stats> next : new TreeMap<>(stats).entrySet()) {
+      Stats s = next.getValue();
+      out.append(", ")
+         .append(next.getKey())
+         .append("=")
+         .append(String.format("%.2f", getHitRatio(next.getKey())))
+         .append(" (")
+         .append(s.hits.get())
+         .append("/")
+         .append(s.revalidated.get())
+         .append("/")
+         .append(s.misses.get())
+         .append(")");
+    }
+    return out.append('}')
+              .toString();
+  }
+
+}
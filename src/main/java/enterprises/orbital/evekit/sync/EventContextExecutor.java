@@ -0,0 +1,55 @@
+package enterprises.orbital.evekit.sync;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor handed to sync handlers for their own threaded work.  Each task runs as part of the event which
+ * submitted it (see {@link ControllerEvent#inheritCurrent(Runnable)}), so requests a handler makes from other
+ * threads are still bounded by the event's deadline and recorded against the event by the response cache.
+ * Lifecycle methods are passed to the underlying executor.
+ */
+public final class EventContextExecutor extends AbstractExecutorService {
+  private final ExecutorService delegate;
+
+  public EventContextExecutor(ExecutorService delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    delegate.execute(ControllerEvent.inheritCurrent(command));
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String toString() {
+    return "EventContextExecutor{" + delegate + '}';
+  }
+}
@@ -0,0 +1,72 @@
+package enterprises.orbital.evekit.sync;
+
+import org.hibernate.c3p0.internal.C3P0ConnectionProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * c3p0 connection provider which bounds each statement by the deadline of the event running on the calling thread.
+ * Statements created while running an event which bounds its queries (see {@link ControllerEvent#boundsQueries()})
+ * get a query timeout equal to the time left before the event's deadline, so a sync cancelled by the watchdog does
+ * not leave a query holding a connection.  All other statements (e.g. deletes and snapshots, or code not running
+ * an event) have no timeout.  The timeout is set on every statement handed out, since c3p0 may return a cached
+ * statement last used by a different event.
+ * <p>
+ * Syncs which hand work to other threads do so through {@link EventContextExecutor}, so queries made on those
+ * threads are bounded by the submitting event's deadline.
+ */
+public class EventDeadlineConnectionProvider extends C3P0ConnectionProvider {
+  private static final long serialVersionUID = 1L;
+
+  // Wraps a connection so that statements it creates are given the current query timeout
+  private static final class DeadlineConnection implements InvocationHandler {
+    final Connection target;
+
+    DeadlineConnection(Connection target) {
+      this.target = target;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof Statement) ((Statement) result).setQueryTimeout(queryTimeout());
+      return result;
+    }
+  }
+
+  // Query timeout in seconds for the current thread, zero for no timeout
+  private static int queryTimeout() {
+    long remaining = ControllerEvent.remainingQueryTime();
+    if (remaining == Long.MAX_VALUE) return 0;
+    // Already past the deadline: time out as soon as the driver allows
+    if (remaining <= 0) return 1;
+    return (int) Math.min(Integer.MAX_VALUE, (remaining + 999L) / 1000L);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    Connection connection = super.getConnection();
+    return (Connection) Proxy.newProxyInstance(EventDeadlineConnectionProvider.class.getClassLoader(),
+                                               new Class<?>[]{Connection.class},
+                                               new DeadlineConnection(connection));
+  }
+
+  @Override
+  public void closeConnection(Connection conn) throws SQLException {
+    if (Proxy.isProxyClass(conn.getClass()) && Proxy.getInvocationHandler(conn) instanceof DeadlineConnection)
+      conn = ((DeadlineConnection) Proxy.getInvocationHandler(conn)).target;
+    super.closeConnection(conn);
+  }
+
+}
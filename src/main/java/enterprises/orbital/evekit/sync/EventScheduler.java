@@ -1,17 +1,73 @@
 package enterprises.orbital.evekit.sync;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public abstract class EventScheduler {
-  public final List<ControllerEvent> pending = Collections.synchronizedList(new ArrayList<>());
+  public final PendingEventRegistry pending = new PendingEventRegistry();
   public ExecutorService       dispatch;
+  // Receives events as they complete
+  private final BlockingQueue<ControllerEvent> completed = new LinkedBlockingQueue<>();
+
+  public BlockingQueue<ControllerEvent> getCompletionQueue() {
+    return completed;
+  }
+
+  /**
+   * Add an event to the pending queue and dispatch it immediately on the given executor.  The event
+   * will be placed on the completion queue when it finishes.
+   *
+   * @param executor executor which should run the event
+   * @param ev       the event to dispatch
+   */
+  public void submit(ExecutorService executor, ControllerEvent ev) {
+    FutureTask<?> task = ev.track(this);
+    pending.add(ev);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      pending.remove(ev);
+      throw e;
+    }
+  }
+
+  /**
+   * Add an event to the pending queue and schedule it to run after the given delay.  The event will
+   * be placed on the completion queue when it finishes.
+   *
+   * @param executor executor which should run the event
+   * @param ev       the event to schedule
+   * @param delay    delay before the event should run
+   * @param unit     units of delay
+   */
+  public void schedule(ScheduledExecutorService executor, ControllerEvent ev, long delay, TimeUnit unit) {
+    FutureTask<?> task = ev.track(this);
+    pending.add(ev);
+    try {
+      executor.schedule(task, delay, unit);
+    } catch (RejectedExecutionException e) {
+      pending.remove(ev);
+      throw e;
+    }
+  }
+
+  /**
+   * Called from the thread which ran (or cancelled) a tracked event once its tracker is done.
+   *
+   * @param ev the completed event
+   */
+  void eventCompleted(ControllerEvent ev) {
+    completed.add(ev);
+  }
 
   /**
    * Attempt to fill the pending queue with more events. This method will normally only be called when the queue is empty.
-   * 
+   *
    * @return true if events were added, false otherwise.
    */
   public abstract boolean fillPending();
@@ -20,4 +76,4 @@ public abstract class EventScheduler {
    * Give this scheduler a chance to verify it is still live and functioning properly.
    */
   public void statusCheck() {}
-}
\ No newline at end of file
+}
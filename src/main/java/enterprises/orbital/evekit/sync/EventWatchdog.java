@@ -0,0 +1,249 @@
+package enterprises.orbital.evekit.sync;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cancels dispatched events which exceed their maximum delay.  Deadlines are stored in a hierarchical
+ * timing wheel so registration, removal and expiry are constant time regardless of the number of events
+ * in flight.  Events are registered when dispatched (see {@link ControllerEvent#run()}) and removed when
+ * their tracker completes.
+ */
+public class EventWatchdog {
+  private static final Logger log = Logger.getLogger(EventWatchdog.class.getName());
+  // Wheel resolution in milliseconds
+  private static final String PROP_TICK = "enterprises.orbital.evekit.sync_mgr.watchdog.tick";
+  private static final long DEF_TICK = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+  // Wheel geometry: LEVELS wheels of 2^SLOT_BITS slots each.  With a one second tick, the top level
+  // covers about 194 days.  Longer deadlines are parked in the top level and re-evaluated on cascade.
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  private static EventWatchdog instance;
+
+  public static synchronized EventWatchdog getInstance() {
+    if (instance == null) instance = new EventWatchdog(OrbitalProperties.getLongGlobalProperty(PROP_TICK, DEF_TICK));
+    return instance;
+  }
+
+  // A registered deadline.  Instances are linked into exactly one wheel slot while registered.
+  static final class Timeout {
+    final ControllerEvent event;
+    final long deadlineTick;
+    Timeout prev;
+    Timeout next;
+    Timeout[] bucket;
+    int slot;
+
+    Timeout(ControllerEvent event, long deadlineTick) {
+      this.event = event;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final long tick;
+  private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+  private long currentTick;
+  private int size;
+
+  // Zombies: events cancelled on timeout whose thread has not yet returned
+  private final AtomicLong zombies = new AtomicLong(0);
+  private final AtomicLong totalZombies = new AtomicLong(0);
+  private final AtomicLong maxZombieTime = new AtomicLong(0);
+
+  private EventWatchdog(long tick) {
+    this.tick = Math.max(1L, tick);
+    this.currentTick = OrbitalProperties.getCurrentTime() / this.tick;
+    ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "event-watchdog");
+      t.setDaemon(true);
+      return t;
+    });
+    ticker.scheduleAtFixedRate(this::advance, this.tick, this.tick, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Register a deadline for a dispatched event.  The deadline is the event dispatch time plus the event's
+   * maximum delay.  Any previous registration for the event is replaced.  Events without a tracker, or
+   * with an unbounded maximum delay, are ignored.
+   *
+   * @param ev the event to watch
+   */
+  public void watch(ControllerEvent ev) {
+    long maxDelay = ev.maxDelayTime();
+    long deadline = ev.getDispatchTime() + maxDelay;
+    if (ev.getTracker() == null || maxDelay == Long.MAX_VALUE || deadline < ev.getDispatchTime()) {
+      unwatch(ev);
+      return;
+    }
+    long deadlineTick = (deadline + tick - 1) / tick;
+    boolean expired;
+    synchronized (this) {
+      unlink(ev.watchdogTimeout);
+      ev.watchdogTimeout = null;
+      expired = deadlineTick <= currentTick;
+      if (!expired) {
+        Timeout timeout = new Timeout(ev, deadlineTick);
+        ev.watchdogTimeout = timeout;
+        insert(timeout);
+        size++;
+      }
+    }
+    if (expired) expire(ev);
+  }
+
+  /**
+   * Remove the deadline for an event, if any.
+   *
+   * @param ev the event which should no longer be watched
+   */
+  public synchronized void unwatch(ControllerEvent ev) {
+    if (ev.watchdogTimeout != null) {
+      unlink(ev.watchdogTimeout);
+      ev.watchdogTimeout = null;
+      size--;
+    }
+  }
+
+  /**
+   * Return the number of events currently being watched.
+   *
+   * @return number of registered deadlines
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  // Place a timeout in the appropriate wheel slot for its distance from the current tick.  Must hold lock.
+  private void insert(Timeout timeout) {
+    long delta = timeout.deadlineTick - currentTick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+      level++;
+    long slotTick = timeout.deadlineTick;
+    long horizon = 1L << (SLOT_BITS * LEVELS);
+    if (delta >= horizon)
+      // Beyond the top wheel, park in the furthest slot and re-evaluate on cascade
+      slotTick = currentTick + horizon - 1;
+    int slot = (int) ((slotTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    Timeout[] bucket = wheels[level];
+    timeout.bucket = bucket;
+    timeout.slot = slot;
+    timeout.prev = null;
+    timeout.next = bucket[slot];
+    if (timeout.next != null) timeout.next.prev = timeout;
+    bucket[slot] = timeout;
+  }
+
+  // Remove a timeout from its slot.  Must hold lock.
+  private void unlink(Timeout timeout) {
+    if (timeout == null || timeout.bucket == null) return;
+    if (timeout.prev != null) timeout.prev.next = timeout.next;
+    else timeout.bucket[timeout.slot] = timeout.next;
+    if (timeout.next != null) timeout.next.prev = timeout.prev;
+    timeout.prev = timeout.next = null;
+    timeout.bucket = null;
+  }
+
+  // Detach and return the list of timeouts in a slot.  Must hold lock.
+  private Timeout detach(int level, int slot) {
+    Timeout head = wheels[level][slot];
+    wheels[level][slot] = null;
+    return head;
+  }
+
+  // Advance the wheel to the current time, cancelling any events whose deadline has passed.
+  private void advance() {
+    try {
+      long targetTick = OrbitalProperties.getCurrentTime() / tick;
+      List<Timeout> expired = new ArrayList<>();
+      synchronized (this) {
+        while (currentTick < targetTick) {
+          currentTick++;
+          // Cascade higher wheels whose slot boundary we just crossed
+          for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) continue;
+            Timeout next = detach(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+            while (next != null) {
+              Timeout current = next;
+              next = current.next;
+              current.prev = current.next = null;
+              insert(current);
+            }
+          }
+          Timeout next = detach(0, (int) (currentTick & SLOT_MASK));
+          while (next != null) {
+            Timeout current = next;
+            next = current.next;
+            current.prev = current.next = null;
+            current.bucket = null;
+            current.event.watchdogTimeout = null;
+            size--;
+            expired.add(current);
+          }
+        }
+      }
+      for (Timeout next : expired)
+        expire(next.event);
+    } catch (Throwable e) {
+      // Never let the ticker die
+      log.log(Level.WARNING, "Unexpected error advancing watchdog", e);
+    }
+  }
+
+  private void expire(ControllerEvent ev) {
+    if (ev.getTracker()
+          .isDone()) return;
+    long delay = OrbitalProperties.getCurrentTime() - ev.getDispatchTime();
+    log.warning("Canceling event due to timeout.  Delay=" + delay + " Max=" + ev.maxDelayTime() + " Event=" + ev);
+    ev.getTracker()
+      .cancel(true);
+    if (ev.markZombie(OrbitalProperties.getCurrentTime())) {
+      zombies.incrementAndGet();
+      totalZombies.incrementAndGet();
+    }
+  }
+
+  /**
+   * Record that the thread running a cancelled event has returned.
+   *
+   * @param ev    the event
+   * @param since time when the event was cancelled
+   */
+  void zombieFinished(ControllerEvent ev, long since) {
+    long lifetime = OrbitalProperties.getCurrentTime() - since;
+    zombies.decrementAndGet();
+    maxZombieTime.accumulateAndGet(lifetime, Math::max);
+    log.info("Cancelled event returned after " + lifetime + " ms: " + ev);
+  }
+
+  /**
+   * Return the number of cancelled events whose thread is still running.
+   *
+   * @return current zombie count
+   */
+  public long getZombieCount() {
+    return zombies.get();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "EventWatchdog{" +
+        "size=" + size +
+        ", zombies=" + zombies.get() +
+        ", totalZombies=" + totalZombies.get() +
+        ", maxZombieTime=" + maxZombieTime.get() +
+        '}';
+  }
+
+}
@@ -0,0 +1,141 @@
+package enterprises.orbital.evekit.sync;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a shared, bounded pool while guaranteeing that tasks submitted under the same key run one at
+ * a time in submission order.  Each key with queued work has a small queue which is drained by at most one pool
+ * thread at a time.  The queue is discarded as soon as it empties, so idle keys cost no threads and no memory.
+ * <p>
+ * A drainer runs one task and then yields its pool thread, so a key with a long backlog can not starve other
+ * keys.
+ */
+public class KeyedSerialExecutor {
+  private static final Logger log = Logger.getLogger(KeyedSerialExecutor.class.getName());
+
+  private final ExecutorService pool;
+  private final ScheduledExecutorService timer;
+  private final ConcurrentMap<Object, SerialQueue> queues = new ConcurrentHashMap<>();
+
+  public KeyedSerialExecutor(ExecutorService pool) {
+    this.pool = pool;
+    this.timer = TimerBackedScheduledExecutor.createTimer("keyed-serial-timer");
+  }
+
+  // Tasks for a single key.  A queue is "active" while a drainer is running or queued on the pool.
+  // Once a queue retires it is removed from the map and never reused.
+  private final class SerialQueue implements Runnable {
+    private final Object key;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean active;
+    private boolean retired;
+
+    SerialQueue(Object key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      Runnable task;
+      synchronized (this) {
+        task = tasks.poll();
+      }
+      try {
+        if (task != null) task.run();
+      } finally {
+        boolean more;
+        synchronized (this) {
+          more = !tasks.isEmpty();
+          if (!more) {
+            active = false;
+            retired = true;
+            queues.remove(key, this);
+          }
+        }
+        if (more) reschedule();
+      }
+    }
+
+    private void reschedule() {
+      try {
+        pool.execute(this);
+      } catch (RejectedExecutionException e) {
+        abandon();
+      }
+    }
+
+    // Called when the pool rejects a drainer.  Release anyone waiting on remaining tasks and retire.
+    private synchronized void abandon() {
+      if (!tasks.isEmpty()) log.warning("Pool rejected drainer for key " + key + ", cancelling queued tasks");
+      for (Runnable next : tasks)
+        if (next instanceof Future) ((Future<?>) next).cancel(false);
+      tasks.clear();
+      active = false;
+      retired = true;
+      queues.remove(key, this);
+    }
+  }
+
+  /**
+   * Execute a task after all previously submitted tasks for the same key have completed.
+   *
+   * @param key  ordering key
+   * @param task task to run
+   */
+  public void execute(Object key, Runnable task) {
+    while (true) {
+      SerialQueue queue = queues.computeIfAbsent(key, SerialQueue::new);
+      synchronized (queue) {
+        if (queue.retired) continue;
+        queue.tasks.add(task);
+        if (queue.active) return;
+        queue.active = true;
+      }
+      try {
+        pool.execute(queue);
+      } catch (RejectedExecutionException e) {
+        // Our task is rejected to the caller, any tasks queued behind it are cancelled
+        synchronized (queue) {
+          queue.tasks.remove(task);
+        }
+        queue.abandon();
+        throw e;
+      }
+      return;
+    }
+  }
+
+  /**
+   * Return the number of keys which currently have queued or running tasks.
+   *
+   * @return number of active keys
+   */
+  public int activeKeys() {
+    return queues.size();
+  }
+
+  /**
+   * Return a ScheduledExecutorService which submits all tasks under the given key.  Views are lightweight and
+   * need not be cached.  Delayed tasks wait on a shared timer and are queued for the key when due.
+   *
+   * @param key ordering key
+   * @return executor view for the key
+   */
+  public ScheduledExecutorService forKey(Object key) {
+    return new TimerBackedScheduledExecutor(timer) {
+      @Override
+      public void execute(Runnable command) {
+        if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+        KeyedSerialExecutor.this.execute(key, command);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,96 @@
+package enterprises.orbital.evekit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent registry of pending events for a scheduler.  Events are indexed by class and by the keys
+ * returned from {@link ControllerEvent#getIndexKeys()}, which allows "unfinished event exists" checks and
+ * removals without scanning every pending event or blocking threads which are adding events.
+ */
+public class PendingEventRegistry {
+  private final Set<ControllerEvent> all = ConcurrentHashMap.newKeySet();
+  private final ConcurrentMap<Object, Set<ControllerEvent>> byKey = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Class<?>, Set<ControllerEvent>> byClass = new ConcurrentHashMap<>();
+
+  public void add(ControllerEvent ev) {
+    if (!all.add(ev)) return;
+    index(byClass, ev.getClass(), ev);
+    for (Object key : ev.getIndexKeys())
+      index(byKey, key, ev);
+  }
+
+  public boolean remove(ControllerEvent ev) {
+    if (!all.remove(ev)) return false;
+    unindex(byClass, ev.getClass(), ev);
+    for (Object key : ev.getIndexKeys())
+      unindex(byKey, key, ev);
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return all.isEmpty();
+  }
+
+  public int size() {
+    return all.size();
+  }
+
+  /**
+   * Return a point in time copy of all pending events.
+   *
+   * @return list of pending events
+   */
+  public List<ControllerEvent> snapshot() {
+    return new ArrayList<>(all);
+  }
+
+  /**
+   * Check whether an event indexed under the given key is pending and not done.
+   *
+   * @param key the index key to check
+   * @return true if an unfinished event exists for the key, false otherwise.
+   */
+  public boolean hasUnfinished(Object key) {
+    return hasUnfinished(byKey.get(key));
+  }
+
+  /**
+   * Check whether an event of the given class is pending and not done.
+   *
+   * @param type the event class to check
+   * @return true if an unfinished event of the given class exists, false otherwise.
+   */
+  public boolean hasUnfinished(Class<? extends ControllerEvent> type) {
+    return hasUnfinished(byClass.get(type));
+  }
+
+  private static boolean hasUnfinished(Set<ControllerEvent> events) {
+    if (events == null) return false;
+    for (ControllerEvent next : events) {
+      if (next.getTracker() != null && !next.getTracker()
+                                            .isDone())
+        return true;
+    }
+    return false;
+  }
+
+  private static <K> void index(ConcurrentMap<K, Set<ControllerEvent>> map, K key, ControllerEvent ev) {
+    map.compute(key, (k, v) -> {
+      if (v == null) v = ConcurrentHashMap.newKeySet();
+      v.add(ev);
+      return v;
+    });
+  }
+
+  private static <K> void unindex(ConcurrentMap<K, Set<ControllerEvent>> map, K key, ControllerEvent ev) {
+    map.computeIfPresent(key, (k, v) -> {
+      v.remove(ev);
+      return v.isEmpty() ? null : v;
+    });
+  }
+
+}
@@ -0,0 +1,113 @@
+package enterprises.orbital.evekit.sync;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs each task on its own virtual thread, limiting concurrency with an explicit permit count rather than a
+ * thread count.  Tasks which are waiting on blocking I/O hold a permit but no platform thread, so the permit
+ * count can be set to the desired number of concurrent ESI requests.  Delayed tasks wait on a timer thread
+ * and hold neither a thread nor a permit until due.
+ * <p>
+ * Virtual threads are located reflectively so this class also runs on JVMs without them.  In that case tasks
+ * run on a fixed pool with one platform thread per permit, which gives the same concurrency limit.
+ */
+public class PermitLimitedExecutor extends TimerBackedScheduledExecutor {
+  private static final Logger log = Logger.getLogger(PermitLimitedExecutor.class.getName());
+
+  private final ExecutorService threads;
+  private final Semaphore permits;
+  private final int permitCount;
+
+  public PermitLimitedExecutor(String name, int permitCount) {
+    super(createTimer(name + "-timer"));
+    this.permitCount = Math.max(1, permitCount);
+    ExecutorService virtual = createVirtualThreadExecutor();
+    if (virtual != null) {
+      log.info(name + ": virtual threads limited to " + this.permitCount + " permits");
+      this.threads = virtual;
+      this.permits = new Semaphore(this.permitCount, true);
+    } else {
+      log.info(name + ": virtual threads not available, using " + this.permitCount + " platform threads");
+      this.threads = Executors.newFixedThreadPool(this.permitCount);
+      this.permits = null;
+    }
+  }
+
+  /**
+   * Return true if this JVM supports virtual threads.
+   *
+   * @return true if virtual threads are available.
+   */
+  public static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ExecutorService createVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.log(Level.WARNING, "Failed to create virtual thread executor", e);
+      return null;
+    }
+  }
+
+  public int getPermitCount() {
+    return permitCount;
+  }
+
+  /**
+   * Return the number of tasks currently holding a permit.
+   *
+   * @return number of running tasks
+   */
+  public int getActiveCount() {
+    return permits == null ? -1 : permitCount - permits.availablePermits();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+    if (permits == null) {
+      threads.execute(command);
+      return;
+    }
+    threads.execute(() -> {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        // Make sure waiters on the task are released
+        if (command instanceof Future) ((Future<?>) command).cancel(false);
+        Thread.currentThread()
+              .interrupt();
+        return;
+      }
+      try {
+        command.run();
+      } finally {
+        permits.release();
+      }
+    });
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    threads.shutdown();
+  }
+
+}
@@ -0,0 +1,110 @@
+package enterprises.orbital.evekit.sync;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a single EventScheduler on a dedicated thread.  The supervisor refills the scheduler when its
+ * pending queue empties, retires events as they complete, and gives the scheduler a status check on its own
+ * cadence.  Failures in the scheduler back off exponentially without affecting other supervisors.
+ */
+public class SchedulerSupervisor implements Runnable {
+  private static final Logger log = Logger.getLogger(SchedulerSupervisor.class.getName());
+  // Per event type status check cadence.  The event type is substituted for %s.
+  private static final String PROP_CADENCE = "enterprises.orbital.evekit.sync_mgr.type.%s.cadence";
+  // Maximum backoff after repeated scheduler failures
+  private static final String PROP_MAX_BACKOFF = "enterprises.orbital.evekit.sync_mgr.supervisor.max_backoff";
+  private static final long DEF_MAX_BACKOFF = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+
+  private final EventType type;
+  private final EventScheduler scheduler;
+  private final long cadence;
+  private final long maxBackoff;
+  // Consecutive scheduler failures, reset on the first successful pass
+  private int failures;
+
+  public SchedulerSupervisor(EventType type, EventScheduler scheduler, long defaultCadence) {
+    this.type = type;
+    this.scheduler = scheduler;
+    this.cadence = Math.max(1L, OrbitalProperties.getLongGlobalProperty(String.format(PROP_CADENCE, type.name()),
+                                                                         defaultCadence));
+    this.maxBackoff = OrbitalProperties.getLongGlobalProperty(PROP_MAX_BACKOFF, DEF_MAX_BACKOFF);
+  }
+
+  public EventType getType() {
+    return type;
+  }
+
+  @Override
+  public void run() {
+    BlockingQueue<ControllerEvent> completed = scheduler.getCompletionQueue();
+    log.fine("Starting supervisor for " + type);
+    long nextCheck = 0;
+    while (!Thread.currentThread()
+                 .isInterrupted()) {
+      long now = OrbitalProperties.getCurrentTime();
+      if (now >= nextCheck) {
+        try {
+          if (scheduler.pending.isEmpty()) {
+            log.info("[FILL] " + type);
+            // Attempt to refill queue with events. We expect the scheduler will also dispatch these events internally
+            scheduler.fillPending();
+          }
+          log.info("[STATUS CHECK] " + type);
+          scheduler.statusCheck();
+          log.fine("Watchdog: " + EventWatchdog.getInstance());
+          failures = 0;
+          nextCheck = now + cadence;
+        } catch (Exception e) {
+          failures++;
+          long backoff = Math.min(maxBackoff, cadence << Math.min(failures - 1, 20));
+          log.log(Level.WARNING, "Scheduler " + type + " failed " + failures + " time(s), backing off for " + backoff + " ms", e);
+          nextCheck = now + backoff;
+        }
+      }
+      // Wait for the next event to complete, or until the next check is due.
+      try {
+        long wait = Math.max(0L, nextCheck - OrbitalProperties.getCurrentTime());
+        ControllerEvent done = completed.poll(wait, TimeUnit.MILLISECONDS);
+        int count = 0;
+        while (done != null) {
+          retire(done);
+          count++;
+          done = completed.poll();
+        }
+        if (count > 0) {
+          log.fine("Cleaned up " + count + " events for " + type);
+          // Refill immediately once the last pending event retires
+          if (scheduler.pending.isEmpty() && failures == 0) nextCheck = 0;
+        }
+      } catch (InterruptedException e) {
+        log.log(Level.WARNING, "Supervisor for " + type + " interrupted, exiting", e);
+        Thread.currentThread()
+              .interrupt();
+      }
+    }
+  }
+
+  /**
+   * Remove a completed event from its scheduler and log any uncaught exception thrown by the event.
+   *
+   * @param e the completed event
+   */
+  private void retire(ControllerEvent e) {
+    scheduler.pending.remove(e);
+    try {
+      // Call the get method to retrieve any uncaught exceptions from the event
+      e.getTracker()
+       .get();
+    } catch (InterruptedException | ExecutionException | CancellationException f) {
+      log.log(Level.WARNING, "Uncaught exception thrown by event: ", f);
+    }
+  }
+
+}
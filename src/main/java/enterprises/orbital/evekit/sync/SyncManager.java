@@ -9,12 +9,8 @@ import enterprises.orbital.evekit.sync.ref.ESIRefEventScheduler;
 import enterprises.orbital.evekit.sync.snapshot.SnapshotEventScheduler;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,7 +31,7 @@ public class SyncManager {
   private static final Logger log = Logger.getLogger(SyncManager.class.getName());
   // Persistence unit for properties
   private static final String PROP_PROPERTIES_PU = "enterprises.orbital.evekit.sync_mgr.properties.persistence_unit";
-  // Sleep time when main event loop performs no action
+  // Default interval between scheduler status checks (see SchedulerSupervisor for per type overrides)
   private static final String PROP_NOACTION_DELAY = "enterprises.orbital.evekit.sync_mgr.noaction_delay";
   private static final long DEF_NOACTION_DELAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
   // Schedule activation properties
@@ -51,14 +47,15 @@ public class SyncManager {
     OrbitalProperties.addPropertyFile("SyncMgrStandalone.properties");
     // Sent persistence unit for properties
     PersistentProperty.setProvider(new DBPropertyProvider(OrbitalProperties.getGlobalProperty(PROP_PROPERTIES_PU)));
-    // Main loop proceeds as follows:
-    // 1. Dispatch events in the event queue until it is empty.
-    // 1.a. Queue events only dispatch if there are threads available to dispatch the event
-    // 2. When the queue is empty:
-    // 2.a. Queue up sync events for accounts that are eligible for synchronization
-    // 2.b. Queue up sync events for accounts that have an uncompleted sync tracker (also handles stuck trackers)
-    // 2.c. Queue up delete events for accounts which are eligible for deletion
-    // 2.d. Queue up snapshot events for accounts which are eligible to take a snapshot
+    // Each enabled scheduler runs under its own supervisor thread, which proceeds as follows:
+    // 1. Refill the scheduler when its pending queue is empty:
+    // 1.a. Queue up sync events for accounts that are eligible for synchronization
+    // 1.b. Queue up sync events for accounts that have an uncompleted sync tracker (also handles stuck trackers)
+    // 1.c. Queue up delete events for accounts which are eligible for deletion
+    // 1.d. Queue up snapshot events for accounts which are eligible to take a snapshot
+    // 2. Periodically give the scheduler a status check (stuck events are cancelled by the EventWatchdog)
+    // 3. Block until an event completes (or the next periodic check is due), then retire completed events
+    // The main thread restarts any supervisor which dies unexpectedly.
     Map<EventType, EventScheduler> schedules = new HashMap<>();
     if (OrbitalProperties.getBooleanGlobalProperty(PROP_SYNC_SCHEDULE_ENABLED, false))
       schedules.put(EventType.ESISYNC, new ESIAccountEventScheduler());
@@ -69,73 +66,39 @@ public class SyncManager {
     if (OrbitalProperties.getBooleanGlobalProperty(PROP_SNAPSHOT_SCHEDULE_ENABLED, false))
       schedules.put(EventType.SNAPSHOT, new SnapshotEventScheduler());
     final long noActionDelay = OrbitalProperties.getLongGlobalProperty(PROP_NOACTION_DELAY, DEF_NOACTION_DELAY);
+    Map<EventType, Thread> supervisors = new HashMap<>();
+    for (Map.Entry<EventType, EventScheduler> next : schedules.entrySet()) {
+      SchedulerSupervisor supervisor = new SchedulerSupervisor(next.getKey(), next.getValue(), noActionDelay);
+      supervisors.put(next.getKey(), startSupervisor(supervisor));
+    }
     // Spin forever - ctrl-C to kill
-    log.fine("Entering main event loop");
+    log.fine("Supervisors started, monitoring");
     //noinspection InfiniteLoopStatement
     while (true) {
-      // Set to true on an iteration if we took some action
-      boolean action = false;
-      // Current loop time
-      long now = OrbitalProperties.getCurrentTime();
-      // Process event queue
-      for (EventType next : EventType.values()) {
-        if (!schedules.containsKey(next))
-          // Skip disabled schedulers
-          continue;
-        log.info("[START] Processing Queue: " + next);
-        EventScheduler nextScheduler = schedules.get(next);
-        log.info("[QUEUE CHECK/CLEANUP] " + next);
-        if (nextScheduler.pending.isEmpty()) {
-          log.info("Filling queue");
-          // Attempt to refill queue with events. We expect the scheduler will also dispatch these events internally
-          action = nextScheduler.fillPending();
-        } else {
-          // Process scheduled events
-          log.info("Checking status of queued events");
-          List<ControllerEvent> deleteList = new ArrayList<>();
-          for (ControllerEvent e : nextScheduler.pending) {
-            // Remove completed event
-            if (e.tracker.isDone()) {
-              deleteList.add(e);
-              action = true;
-              try {
-                // Call the get method to retrieve any uncaught exceptions from the event
-                e.tracker.get();
-              } catch (InterruptedException | ExecutionException | CancellationException f) {
-                log.log(Level.WARNING, "Uncaught exception thrown by event: ", f);
-              }
-              continue;
-            }
-            // Check if a dispatched event is stuck
-            if (e.dispatchTime > 0) {
-              long delay = now - e.dispatchTime;
-              if (delay > e.maxDelayTime()) {
-                log.warning(
-                    "Canceling event due to timeout.  Delay=" + delay + " Max=" + e.maxDelayTime() + " Event=" + e);
-                e.tracker.cancel(true);
-                action = true;
-                //noinspection UnnecessaryContinue
-                continue;
-              }
-            }
-          }
-          nextScheduler.pending.removeAll(deleteList);
-          log.info("Cleaned up " + deleteList.size() + " events");
-        }
-        log.info("[STATUS CHECK] " + next);
-        nextScheduler.statusCheck();
-        log.info("[END] Processing Queue: " + next);
-      }
-      // If we took no action, then sleep and try again later.
-      if (!action) try {
-        log.info(
-            "No actions sleeping for " + TimeUnit.MINUTES.convert(noActionDelay, TimeUnit.MILLISECONDS) + " minutes");
+      try {
         Thread.sleep(noActionDelay);
       } catch (InterruptedException e) {
         // log but ignore
         log.log(Level.WARNING, "Unexpected intterupt", e);
       }
+      for (Map.Entry<EventType, Thread> next : supervisors.entrySet()) {
+        if (!next.getValue()
+                 .isAlive()) {
+          log.severe("Supervisor for " + next.getKey() + " died, restarting");
+          SchedulerSupervisor supervisor = new SchedulerSupervisor(next.getKey(), schedules.get(next.getKey()),
+                                                                   noActionDelay);
+          next.setValue(startSupervisor(supervisor));
+        }
+      }
     }
   }
 
+  private static Thread startSupervisor(SchedulerSupervisor supervisor) {
+    Thread t = new Thread(supervisor, "supervisor-" + supervisor.getType());
+    t.setUncaughtExceptionHandler(
+        (thread, e) -> log.log(Level.SEVERE, "Uncaught exception in supervisor " + supervisor.getType(), e));
+    t.start();
+    return t;
+  }
+
 }
@@ -0,0 +1,139 @@
+package enterprises.orbital.evekit.sync;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base for ScheduledExecutorService implementations which run tasks somewhere other than a thread pool they
+ * own.  Delayed tasks wait on a shared timer thread and are handed to {@link #execute(Runnable)} when due, so
+ * waiting tasks never occupy an execution thread.  Periodic tasks are handed off at each period, subclasses
+ * decide whether overlapping runs are possible.
+ * <p>
+ * Subclasses only provide {@link #execute(Runnable)}.  Shutdown stops new tasks from being accepted but does not
+ * affect the backing executor, whose lifecycle is owned elsewhere.
+ */
+public abstract class TimerBackedScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+  private final ScheduledExecutorService timer;
+  private volatile boolean shutdown;
+
+  protected TimerBackedScheduledExecutor(ScheduledExecutorService timer) {
+    this.timer = timer;
+  }
+
+  /**
+   * Create a single daemon thread timer suitable for sharing among instances of this class.
+   *
+   * @param name thread name
+   * @return a new timer
+   */
+  public static ScheduledExecutorService createTimer(String name) {
+    ThreadFactory factory = r -> {
+      Thread t = new Thread(r, name);
+      t.setDaemon(true);
+      return t;
+    };
+    return Executors.newSingleThreadScheduledExecutor(factory);
+  }
+
+  // A delayed task which is handed off to execute when the timer fires
+  private final class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+    private volatile ScheduledFuture<?> handoff;
+
+    DelayedTask(Callable<V> callable) {
+      super(callable);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      ScheduledFuture<?> h = handoff;
+      return h == null ? 0L : h.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      ScheduledFuture<?> h = handoff;
+      if (h != null) h.cancel(false);
+      return super.cancel(mayInterruptIfRunning);
+    }
+  }
+
+  private void checkShutdown() {
+    if (shutdown) throw new RejectedExecutionException("Executor has been shut down");
+  }
+
+  // Hand a due task to execute, cancelling the task if it is rejected so that waiters are released
+  private void handoff(FutureTask<?> task) {
+    try {
+      execute(task);
+    } catch (RejectedExecutionException e) {
+      task.cancel(false);
+    }
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return schedule(Executors.callable(command), delay, unit);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    checkShutdown();
+    DelayedTask<V> task = new DelayedTask<>(callable);
+    task.handoff = timer.schedule(() -> handoff(task), delay, unit);
+    return task;
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    checkShutdown();
+    return timer.scheduleAtFixedRate(() -> execute(command), initialDelay, period, unit);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    checkShutdown();
+    return timer.scheduleWithFixedDelay(() -> execute(command), initialDelay, delay, unit);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    return Collections.emptyList();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return shutdown;
+  }
+
+}
@@ -5,15 +5,17 @@ import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.evekit.account.EveKitUserAccount;
 import enterprises.orbital.evekit.account.SynchronizedEveAccount;
 import enterprises.orbital.evekit.model.AbstractESIAccountSync;
+import enterprises.orbital.evekit.model.ESIAccountSynchronizationHandler;
 import enterprises.orbital.evekit.model.ESIEndpointSyncTracker;
 import enterprises.orbital.evekit.model.ESISyncEndpoint;
 import enterprises.orbital.evekit.model.character.sync.*;
 import enterprises.orbital.evekit.model.corporation.sync.*;
 import enterprises.orbital.evekit.sync.ControllerEvent;
-import enterprises.orbital.evekit.sync.EventScheduler;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
@@ -26,8 +28,8 @@ import java.util.logging.Logger;
  * Periodic event which does the following:
  *
  * <ul>
- * <li>Verify an unfinished scheduled sync tracker exists for every non-excluded ESI endpoint for every account</li>
- * <li>Verify an event has been queued for every unfinished scheduled sync tracker</li>
+ * <li>Verify a sync is queued or in progress for every non-excluded ESI endpoint for every account</li>
+ * <li>For endpoints with no sync, queue one for the endpoint's unfinished sync tracker (created if needed)</li>
  * <li>Queue a new instance of this checker when complete.</li>
  * </ul>
  * <p>
@@ -55,13 +57,13 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
   private static final String DEF_SHARD_CONFIG = "0,1,2,3,4,5,6,7,8,9";
 
   private long maxDelay;
-  private EventScheduler eventScheduler;
+  private ESIAccountEventScheduler eventScheduler;
   private ESIAccountEventScheduler.SyncActionScheduler taskScheduler;
   private ScheduledExecutorService checkService;
   private boolean shard;
   private ShardFilter shardFilter;
 
-  AccountCheckScheduleEvent(EventScheduler eventScheduler,
+  AccountCheckScheduleEvent(ESIAccountEventScheduler eventScheduler,
                             ESIAccountEventScheduler.SyncActionScheduler taskScheduler,
                             ScheduledExecutorService checkThreadService) {
     this.eventScheduler = eventScheduler;
@@ -92,48 +94,13 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
         '}';
   }
 
-  /**
-   * Check whether an unfinished event exists for the given tracker.  We assume the tracker is handled by an instance
-   * of ESIStandardAccountSyncEvent.
-   *
-   * @param tracker the tracker to check
-   * @return true if an event for the given tracker is queued and is not done, false otherwise.
-   */
-  private boolean hasUnfinishedEvent(ESIEndpointSyncTracker tracker) {
-    ESISyncEndpoint ep = tracker.getEndpoint();
-    SynchronizedEveAccount account = tracker.getAccount();
-    synchronized (eventScheduler.pending) {
-      for (ControllerEvent next : eventScheduler.pending) {
-        if (next instanceof ESIStandardAccountSyncEvent) {
-          ESIStandardAccountSyncEvent check = (ESIStandardAccountSyncEvent) next;
-          if (check.getEndpoint() == ep &&
-              check.getHandler()
-                   .account()
-                   .equals(account) &&
-              !check.getTracker()
-                    .isDone())
-            return true;
-        }
-      }
-    }
-    return false;
-  }
-
   /**
    * Check whether an unfinished "check expired token" event exists.
    *
    * @return true if an unfinished "check expired token" event is queued and is not done, false otherwise.
    */
   private boolean hasCheckExpiredEvent() {
-    synchronized (eventScheduler.pending) {
-      for (ControllerEvent next : eventScheduler.pending) {
-        if (next instanceof ESICheckExpiredTokenEvent &&
-            !next.getTracker()
-                 .isDone())
-          return true;
-      }
-    }
-    return false;
+    return eventScheduler.pending.hasUnfinished(ESICheckExpiredTokenEvent.class);
   }
 
   /**
@@ -142,15 +109,7 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
    * @return true if an unfinished "check expired notification" event is queued and is not done, false otherwise.
    */
   private boolean hasCheckExpiredNotificationEvent() {
-    synchronized (eventScheduler.pending) {
-      for (ControllerEvent next : eventScheduler.pending) {
-        if (next instanceof CheckExpiredNotificationEvent &&
-            !next.getTracker()
-                 .isDone())
-          return true;
-      }
-    }
-    return false;
+    return eventScheduler.pending.hasUnfinished(CheckExpiredNotificationEvent.class);
   }
 
   /**
@@ -162,9 +121,7 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
   private void scheduleEvent(SynchronizedEveAccount account, ControllerEvent ev, long eventTime) {
     long delay = Math.max(0L, eventTime - OrbitalProperties.getCurrentTime());
     log.fine("Scheduling event " + String.valueOf(ev) + " to occur in " + delay + " milliseconds");
-    ev.setTracker(taskScheduler.getScheduler(account)
-                               .schedule(ev, delay, TimeUnit.MILLISECONDS));
-    eventScheduler.pending.add(ev);
+    eventScheduler.schedule(taskScheduler.getScheduler(account), ev, delay, TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -190,14 +147,18 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
                     new CheckExpiredNotificationEvent(eventScheduler, taskScheduler.getScheduler(null)),
                     OrbitalProperties.getCurrentTime());
 
-    // Ensure unfinished sync trackers exists for:
+    // Ensure a sync is queued or in progress for:
     //
     // - all non-excluded endpoints
     // - for non-disabled synch accounts which have not been marked for deletion
     // - for sync accounts which have the required scopes for the endpoint (note: some accounts may not have ESI creds)
     //
+    // Syncs already queued (including syncs replayed from the schedule journal) or in progress are left alone, so
+    // sync trackers are only read or created for endpoints which have no sync, e.g. after a sync completes or when
+    // an account is added.
+    //
     // Iterate through all users and sync accounts
-    log.fine("Starting unfinished sync tracker check");
+    log.fine("Starting unfinished sync check");
     try {
       for (EveKitUserAccount nextUser : EveKitUserAccount.getAllAccounts()) {
 
@@ -226,42 +187,49 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
               continue;
             }
 
+            // Find endpoints which need a sync
+            // Note that scope may be null for endpoints which don't require a scope for access.
+            List<ESISyncEndpoint> missing = new ArrayList<>();
+            for (ESISyncEndpoint check : ESISyncEndpoint.values()) {
+              if (excluded.contains(check)) continue;
+              if (check.getScope() != null && !nextAccount.hasScope(check.getScope()
+                                                                         .getName()))
+                continue;
+              if (!eventScheduler.hasUnfinishedSync(nextAccount.getAid(), check)) missing.add(check);
+            }
+            if (missing.isEmpty()) continue;
+
             // Attempt to acquire lock for this account.  If we can't get it, then skip this account
             // until the next iteration.  This prevents the scheduler thread from getting stuck waiting
-            // for a slow update.
+            // for a slow update.  Syncs parked on the lock go first.
             ReentrantLock lck = SynchronizedEveAccount.getSyncAccountLock(nextAccount);
-            if (!lck.tryLock()) {
-              // Lock held by another thread, skip
+            if (!AccountLockQueue.getInstance()
+                                 .tryAcquire(nextAccount.getAid(), lck)) {
+              // Lock held by another thread or syncs are waiting, skip
               log.fine("Unable to obtain account lock, skipping: " + nextAccount);
               continue;
             }
             try {
-              for (ESISyncEndpoint check : ESISyncEndpoint.values()) {
-
-                // Skip excluded by property
-                if (excluded.contains(check)) {
-                  log.fine("Skipping excluded endpoint: " + check);
-                  continue;
-                }
-
+              for (ESISyncEndpoint check : missing) {
                 try {
-                  // Verify scope then check for unfinished sync tracker
-                  // Note that scope may be null for endpoints which don't require a scope
-                  // for access.
-                  if (check.getScope() != null && !nextAccount.hasScope(check.getScope()
-                                                                             .getName()))
-                    continue;
-
-                  ESIEndpointSyncTracker.getOrCreateUnfinishedTracker(nextAccount, check,
-                                                                      OrbitalProperties.getCurrentTime(),
-                                                                      null);
+                  // Queue a sync at the scheduled start time for the unfinished sync tracker, stretched if recent
+                  // syncs of this endpoint saw no changes.  The sync event and handler are created when the sync
+                  // is dispatched.
+                  ESIEndpointSyncTracker tracker = ESIEndpointSyncTracker.getOrCreateUnfinishedTracker(
+                      nextAccount, check, OrbitalProperties.getCurrentTime(), null);
+                  log.fine("Scheduling sync event for " + tracker);
+                  long dueTime = eventScheduler.getSyncIntervals()
+                                               .dueTime(nextAccount.getAid(), check, tracker.getScheduled());
+                  eventScheduler.queueSync(nextUser.getUid(), nextAccount.getAid(), check, dueTime);
                 } catch (IOException e) {
                   log.log(Level.WARNING,
                           "Error retrieving or creating unfinished tracker for endpoint: " + check + ", continuing", e);
                 }
               }
             } finally {
-              lck.unlock();
+              // Hand the lock to any sync parked on this account
+              AccountLockQueue.getInstance()
+                              .release(nextAccount.getAid(), lck);
             }
           }
         } catch (IOException e) {
@@ -270,47 +238,16 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
         }
       }
     } catch (IOException e) {
-      log.log(Level.WARNING, "Error retrieving user list, skipping sync tracker check for this cycle", e);
-    }
-    log.fine("Finished unfinished sync tracker check");
-
-    // Ensure every unfinished sync tracker has a queued, unfinished controller event.
-    log.fine("Started queued unfinished sync tracker check");
-    try {
-      for (ESIEndpointSyncTracker nextTracker : ESIEndpointSyncTracker.getAllUnfinishedTrackers()) {
-        log.fine("Verifying event exists for: " + nextTracker);
-
-        // Check for sharding, skip accounts we shouldn't process.
-        if (shard && !shardFilter.process(nextTracker.getAccount()))
-          continue;
-
-        // Make sure an unfinished controller event exists for this tracker.
-        // If not, queue the event at the scheduled start time for the sync tracker.
-        if (!hasUnfinishedEvent(nextTracker)) {
-          log.fine("Scheduling sync event for " + nextTracker);
-          long startTime = nextTracker.getScheduled();
-          ESISyncEndpoint ep = nextTracker.getEndpoint();
-          SynchronizedEveAccount acct = nextTracker.getAccount();
-          scheduleEvent(acct,
-                        new ESIStandardAccountSyncEvent(ep,
-                                                        handlerDeploymentMap.get(ep)
-                                                                            .generate(acct),
-                                                        taskScheduler.getScheduler(acct)),
-                        startTime);
-        }
-      }
-    } catch (IOException e) {
-      log.log(Level.WARNING, "Error retrieving unfinished tracker list, skipping check for this cycle", e);
+      log.log(Level.WARNING, "Error retrieving user list, skipping sync check for this cycle", e);
     }
-    log.fine("Finished queued unfinished sync tracker check");
+    log.fine("Finished unfinished sync check");
 
     // Requeue ourselves for a future invocation
     long executionDelay = Math.max(0L,
                                    PersistentProperty.getLongPropertyWithFallback(PROP_CYCLE_DELAY, DEF_CYCLE_DELAY));
     log.fine("Scheduling check AccountCheckScheduleEvent to occur in " + executionDelay + " milliseconds");
     AccountCheckScheduleEvent nextChecker = new AccountCheckScheduleEvent(eventScheduler, taskScheduler, checkService);
-    nextChecker.setTracker(checkService.schedule(nextChecker, executionDelay, TimeUnit.MILLISECONDS));
-    eventScheduler.pending.add(nextChecker);
+    eventScheduler.schedule(checkService, nextChecker, executionDelay, TimeUnit.MILLISECONDS);
 
     log.fine("Execution finished: " + toString());
   }
@@ -323,6 +260,18 @@ public class AccountCheckScheduleEvent extends ControllerEvent {
   // Sync handler deployment map
   private static Map<ESISyncEndpoint, SyncHandlerGenerator> handlerDeploymentMap = new HashMap<>();
 
+  /**
+   * Create a new sync handler for the given endpoint and account.
+   *
+   * @param ep      endpoint to synchronize
+   * @param account account to synchronize
+   * @return a new handler instance
+   */
+  static ESIAccountSynchronizationHandler generateHandler(ESISyncEndpoint ep, SynchronizedEveAccount account) {
+    return handlerDeploymentMap.get(ep)
+                               .generate(account);
+  }
+
   static {
     handlerDeploymentMap.put(ESISyncEndpoint.CHAR_WALLET_BALANCE, ESICharacterWalletBalanceSync::new);
     handlerDeploymentMap.put(ESISyncEndpoint.CORP_WALLET_BALANCE, ESICorporationWalletBalanceSync::new);
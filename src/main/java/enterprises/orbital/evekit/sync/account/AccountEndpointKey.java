@@ -0,0 +1,45 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+
+/**
+ * Index key identifying the sync of a single endpoint for a single synchronized account.
+ */
+final class AccountEndpointKey {
+  private final long aid;
+  private final ESISyncEndpoint endpoint;
+
+  AccountEndpointKey(long aid, ESISyncEndpoint endpoint) {
+    this.aid = aid;
+    this.endpoint = endpoint;
+  }
+
+  long getAid() {
+    return aid;
+  }
+
+  ESISyncEndpoint getEndpoint() {
+    return endpoint;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    AccountEndpointKey that = (AccountEndpointKey) o;
+    return aid == that.aid && endpoint == that.endpoint;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(aid) + endpoint.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "AccountEndpointKey{" +
+        "aid=" + aid +
+        ", endpoint=" + endpoint +
+        '}';
+  }
+}
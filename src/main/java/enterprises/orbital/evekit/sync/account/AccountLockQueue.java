@@ -0,0 +1,223 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.sync.TimerBackedScheduledExecutor;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Per-account wait queues for the sync account lock.  A sync which can not take the account lock parks itself
+ * here instead of blocking a thread.  When a holder releases the lock through {@link #release(long, ReentrantLock)},
+ * the next waiter is resumed immediately.  Holders which must not park (e.g. the account checker) use
+ * {@link #tryAcquire(long, ReentrantLock)}, which never takes the lock ahead of parked waiters.  Code outside the
+ * sync manager may still take the lock directly, so parked waiters are also re-checked periodically and resumed if
+ * the lock is free.
+ * <p>
+ * Lock waits are measured from the first time a waiter parks until it acquires the lock.
+ */
+final class AccountLockQueue {
+  private static final Logger log = Logger.getLogger(AccountLockQueue.class.getName());
+  // Interval at which parked waiters check for a lock released outside of this class
+  private static final String PROP_RETRY_DELAY = "enterprises.orbital.evekit.account_sync_mgr.lock_retry";
+  private static final long DEF_RETRY_DELAY = TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS);
+
+  private static AccountLockQueue instance;
+
+  static synchronized AccountLockQueue getInstance() {
+    if (instance == null)
+      instance = new AccountLockQueue(OrbitalProperties.getLongGlobalProperty(PROP_RETRY_DELAY, DEF_RETRY_DELAY));
+    return instance;
+  }
+
+  /**
+   * A parked lock waiter.
+   */
+  static final class Waiter {
+    // Resume the waiter, returns false if the waiter is no longer interested (e.g. cancelled)
+    private final BooleanSupplier resume;
+    private final long parkTime;
+    // True while a retry check is scheduled for this waiter
+    private volatile boolean retryPending;
+
+    Waiter(BooleanSupplier resume) {
+      this.resume = resume;
+      this.parkTime = OrbitalProperties.getCurrentTime();
+    }
+
+    long getParkTime() {
+      return parkTime;
+    }
+  }
+
+  private final long retryDelay;
+  private final ScheduledExecutorService timer = TimerBackedScheduledExecutor.createTimer("account-lock-retry");
+  private final ConcurrentMap<Long, ArrayDeque<Waiter>> waiters = new ConcurrentHashMap<>();
+
+  // Statistics
+  private final AtomicLong immediate = new AtomicLong(0);
+  private final AtomicLong parks = new AtomicLong(0);
+  private final AtomicLong handoffs = new AtomicLong(0);
+  private final AtomicLong retries = new AtomicLong(0);
+  private final AtomicLong waitCount = new AtomicLong(0);
+  private final AtomicLong waitTotal = new AtomicLong(0);
+  private final AtomicLong waitMax = new AtomicLong(0);
+
+  private AccountLockQueue(long retryDelay) {
+    this.retryDelay = Math.max(1L, retryDelay);
+  }
+
+  private ArrayDeque<Waiter> queueFor(long aid) {
+    return waiters.computeIfAbsent(aid, k -> new ArrayDeque<>());
+  }
+
+  /**
+   * Take the account lock if it is free, otherwise park the caller.  A waiter which was resumed but lost the lock
+   * to another thread should pass itself back in so that it keeps its place at the head of the queue.
+   *
+   * @param aid    account ID
+   * @param lock   account lock
+   * @param waiter waiter to park if the lock is held, or a previously parked waiter which is retrying
+   * @param retry  true if waiter was previously parked and is retrying
+   * @return true if the lock was acquired by the calling thread, false if the waiter was parked.
+   */
+  boolean acquireOrPark(long aid, ReentrantLock lock, Waiter waiter, boolean retry) {
+    while (true) {
+      ArrayDeque<Waiter> queue = queueFor(aid);
+      synchronized (queue) {
+        // Queue was pruned before we locked it, start over
+        if (waiters.get(aid) != queue) continue;
+        // Only barge past existing waiters if we are the waiter which was just resumed
+        if ((retry || queue.isEmpty()) && lock.tryLock()) {
+          if (retry) recordWait(waiter);
+          else immediate.incrementAndGet();
+          return true;
+        }
+        if (retry) queue.addFirst(waiter);
+        else {
+          queue.addLast(waiter);
+          parks.incrementAndGet();
+        }
+        if (!waiter.retryPending) scheduleRetry(aid, lock, waiter);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Take the account lock only if it is free and no waiters are parked on it.  Used by holders which would rather
+   * skip their work than wait, so they never jump ahead of parked syncs.
+   *
+   * @param aid  account ID
+   * @param lock account lock
+   * @return true if the lock was acquired by the calling thread, false otherwise.
+   */
+  boolean tryAcquire(long aid, ReentrantLock lock) {
+    ArrayDeque<Waiter> queue = waiters.get(aid);
+    if (queue == null) {
+      if (!lock.tryLock()) return false;
+      immediate.incrementAndGet();
+      return true;
+    }
+    synchronized (queue) {
+      if (!queue.isEmpty() || !lock.tryLock()) return false;
+      immediate.incrementAndGet();
+      return true;
+    }
+  }
+
+  /**
+   * Release the account lock and resume the next waiter, if any.  Must be called by the thread holding the lock.
+   *
+   * @param aid  account ID
+   * @param lock account lock
+   */
+  void release(long aid, ReentrantLock lock) {
+    lock.unlock();
+    if (lock.isLocked()) return;
+    if (resumeNext(aid)) handoffs.incrementAndGet();
+  }
+
+  // Resume the first waiter which is still interested.  Returns true if a waiter was resumed.
+  private boolean resumeNext(long aid) {
+    ArrayDeque<Waiter> queue = waiters.get(aid);
+    if (queue == null) return false;
+    while (true) {
+      Waiter next;
+      synchronized (queue) {
+        next = queue.pollFirst();
+      }
+      if (next == null) return false;
+      if (next.resume.getAsBoolean()) return true;
+    }
+  }
+
+  // Periodically resume a parked waiter if the lock was released by a holder which did not use release()
+  private void scheduleRetry(long aid, ReentrantLock lock, Waiter waiter) {
+    waiter.retryPending = true;
+    timer.schedule(() -> {
+      waiter.retryPending = false;
+      ArrayDeque<Waiter> queue = waiters.get(aid);
+      if (queue == null) return;
+      synchronized (queue) {
+        if (!queue.contains(waiter)) return;
+        if (lock.isLocked() || queue.peekFirst() != waiter) {
+          scheduleRetry(aid, lock, waiter);
+          return;
+        }
+        queue.pollFirst();
+      }
+      retries.incrementAndGet();
+      if (!waiter.resume.getAsBoolean()) resumeNext(aid);
+    }, retryDelay, TimeUnit.MILLISECONDS);
+  }
+
+  private void recordWait(Waiter waiter) {
+    long wait = OrbitalProperties.getCurrentTime() - waiter.getParkTime();
+    waitCount.incrementAndGet();
+    waitTotal.addAndGet(wait);
+    waitMax.accumulateAndGet(wait, Math::max);
+  }
+
+  /**
+   * Discard empty wait queues.  Called periodically to bound memory for accounts which are no longer contended.
+   */
+  void prune() {
+    waiters.forEach((aid, queue) -> {
+      synchronized (queue) {
+        if (queue.isEmpty()) waiters.remove(aid, queue);
+      }
+    });
+  }
+
+  int parkedCount() {
+    int count = 0;
+    for (ArrayDeque<Waiter> queue : waiters.values())
+      synchronized (queue) {
+        count += queue.size();
+      }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    long count = waitCount.get();
+    return "AccountLockQueue{" +
+        "immediate=" + immediate.get() +
+        ", parks=" + parks.get() +
+        ", parked=" + parkedCount() +
+        ", handoffs=" + handoffs.get() +
+        ", retries=" + retries.get() +
+        ", waits=" + count +
+        ", meanWait=" + (count == 0 ? 0 : waitTotal.get() / count) +
+        ", maxWait=" + waitMax.get() +
+        '}';
+  }
+}
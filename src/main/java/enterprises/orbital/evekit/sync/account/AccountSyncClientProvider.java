@@ -1,49 +1,29 @@
 package enterprises.orbital.evekit.sync.account;
 
-import enterprises.orbital.base.OrbitalProperties;
-import enterprises.orbital.base.PersistentProperty;
 import enterprises.orbital.eve.esi.client.api.*;
 import enterprises.orbital.eve.esi.client.invoker.ApiClient;
 import enterprises.orbital.evekit.model.ESIAccountClientProvider;
+import enterprises.orbital.evekit.sync.ESIHttpClientPool;
+import enterprises.orbital.evekit.sync.EventContextExecutor;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * API client provider for sync requests.  This provider is threading friendly and provides
  * a separate ApiClient for each API getter.  Threaded requests should request a separate API
- * instance for each thread.
+ * instance for each thread.  Tasks submitted to the provider's scheduler run as part of the calling sync event,
+ * so their requests are bounded by the event's deadline.
  */
 public class AccountSyncClientProvider implements ESIAccountClientProvider {
-  // User agent property
-  private static final String PROP_USER_AGENT = "enterprises.orbital.evekit.esi.user_agent";
-  private static final String DEF_USER_AGENT = "unknown-agent";
-
-  // Client connection timeout in milliseconds
-  private static final String PROP_CONNECT_TIMEOUT = "enterprises.orbital.evekit.esi.timeout.connect";
-  private static final long DEF_CONNECT_TIMEOUT = 60_000L;
-
-  // Client connection read timeout in milliseconds
-  private static final String PROP_READ_TIMEOUT = "enterprises.orbital.evekit.esi.timeout.read";
-  private static final long DEF_READ_TIMEOUT = 60_000L;
-
-
   private final ExecutorService scheduler;
 
   AccountSyncClientProvider(ExecutorService scheduler) {
-    this.scheduler = scheduler;
+    this.scheduler = new EventContextExecutor(scheduler);
   }
 
   private ApiClient generateClient() {
-    ApiClient client = new ApiClient();
-    client.setUserAgent(OrbitalProperties.getGlobalProperty(PROP_USER_AGENT, DEF_USER_AGENT));
-    client.setConnectTimeout(
-        (int) PersistentProperty.getLongPropertyWithFallback(PROP_CONNECT_TIMEOUT, DEF_CONNECT_TIMEOUT));
-    client.getHttpClient()
-          .setReadTimeout(
-              (int) PersistentProperty.getLongPropertyWithFallback(PROP_READ_TIMEOUT, DEF_READ_TIMEOUT),
-              TimeUnit.MILLISECONDS);
-    return client;
+    return ESIHttpClientPool.getInstance()
+                            .newApiClient();
   }
 
   @Override
@@ -0,0 +1,131 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stretch the sync interval of account endpoints whose data is not changing.  Each completed sync reports whether
+ * any of its ESI responses changed (see ESIResponseCache.endCapture).  Every consecutive unchanged sync doubles
+ * the interval to the next sync, up to a configured ceiling, and a sync which sees changed data returns the
+ * endpoint to its normal interval.
+ * <p>
+ * The normal interval is the one chosen by the sync handler, i.e. the time from the last completed sync to the
+ * scheduled time of the next tracker.  Stretching only ever delays a sync, and never beyond the ceiling unless
+ * the normal interval is already longer.  State is kept in memory, so every endpoint starts at its normal
+ * interval after a restart.
+ */
+final class AdaptiveSyncIntervals {
+  private static final String PROP_ENABLED = "enterprises.orbital.evekit.account_sync_mgr.adaptive.enabled";
+  private static final boolean DEF_ENABLED = true;
+  // Longest interval a stretched endpoint may reach
+  private static final String PROP_MAX_INTERVAL = "enterprises.orbital.evekit.account_sync_mgr.adaptive.max_interval";
+  private static final long DEF_MAX_INTERVAL = TimeUnit.MILLISECONDS.convert(4, TimeUnit.HOURS);
+  // Cap on the stretch factor, so the factor can not overflow for short intervals
+  private static final int MAX_FACTOR = 1 << 10;
+  // State for endpoints which have not completed a sync in this long is discarded
+  private static final long PRUNE_AGE = TimeUnit.MILLISECONDS.convert(2, TimeUnit.DAYS);
+
+  // Adaptive state for one account endpoint, guarded by itself
+  private static final class State {
+    long lastCompleted;
+    int factor = 1;
+  }
+
+  private final boolean enabled;
+  private final long maxInterval;
+  private final Map<AccountEndpointKey, State> states = new ConcurrentHashMap<>();
+  // Syncs scheduled with a stretched interval, and syncs which saw changed data after being stretched
+  private final AtomicLong stretched = new AtomicLong(0);
+  private final AtomicLong reset = new AtomicLong(0);
+
+  AdaptiveSyncIntervals() {
+    enabled = OrbitalProperties.getBooleanGlobalProperty(PROP_ENABLED, DEF_ENABLED);
+    maxInterval = OrbitalProperties.getLongGlobalProperty(PROP_MAX_INTERVAL, DEF_MAX_INTERVAL);
+  }
+
+  /**
+   * Record the outcome of a completed sync.
+   *
+   * @param aid       account ID
+   * @param endpoint  endpoint synchronized
+   * @param changed   true if the sync saw changed data
+   * @param completed time when the sync completed
+   */
+  void observe(long aid, ESISyncEndpoint endpoint, boolean changed, long completed) {
+    if (!enabled) return;
+    State state = states.computeIfAbsent(new AccountEndpointKey(aid, endpoint), k -> new State());
+    synchronized (state) {
+      state.lastCompleted = completed;
+      if (changed) {
+        if (state.factor > 1) reset.incrementAndGet();
+        state.factor = 1;
+      } else {
+        state.factor = Math.min(MAX_FACTOR, state.factor * 2);
+      }
+    }
+  }
+
+  /**
+   * Forget the state of an endpoint, e.g. because its sync failed.
+   *
+   * @param aid      account ID
+   * @param endpoint endpoint
+   */
+  void forget(long aid, ESISyncEndpoint endpoint) {
+    states.remove(new AccountEndpointKey(aid, endpoint));
+  }
+
+  /**
+   * Return the time when the next sync of an endpoint should be dispatched.
+   *
+   * @param aid       account ID
+   * @param endpoint  endpoint to synchronize
+   * @param scheduled time the next sync is scheduled by its tracker
+   * @return scheduled time, stretched if recent syncs saw no changes
+   */
+  long dueTime(long aid, ESISyncEndpoint endpoint, long scheduled) {
+    if (!enabled) return scheduled;
+    State state = states.get(new AccountEndpointKey(aid, endpoint));
+    if (state == null) return scheduled;
+    long last;
+    int factor;
+    synchronized (state) {
+      last = state.lastCompleted;
+      factor = state.factor;
+    }
+    long normal = scheduled - last;
+    if (factor == 1 || normal <= 0) return scheduled;
+    long interval = Math.min(normal * factor, Math.max(maxInterval, normal));
+    stretched.incrementAndGet();
+    return last + interval;
+  }
+
+  /**
+   * Discard state for endpoints which have not synchronized recently, e.g. because the account was removed.
+   */
+  void prune() {
+    long cutoff = OrbitalProperties.getCurrentTime() - Math.max(PRUNE_AGE, 2 * maxInterval);
+    states.values()
+          .removeIf(next -> {
+            synchronized (next) {
+              return next.lastCompleted < cutoff;
+            }
+          });
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSyncIntervals{" +
+        "enabled=" + enabled +
+        ", tracked=" + states.size() +
+        ", stretched=" + stretched.get() +
+        ", reset=" + reset.get() +
+        '}';
+  }
+
+}
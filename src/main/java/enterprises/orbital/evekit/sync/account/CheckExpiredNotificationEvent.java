@@ -71,8 +71,7 @@ public class CheckExpiredNotificationEvent extends ControllerEvent implements Ru
     long delay = OrbitalProperties.getLongGlobalProperty(PROP_EXPIRED_NOTE_DELAY, DEF_EXPIRED_NOTE_DELAY);
     log.fine("Scheduling event to occur in " + delay + " milliseconds");
     ControllerEvent ev = new CheckExpiredNotificationEvent(scheduler, taskScheduler);
-    ev.setTracker(taskScheduler.schedule(ev, delay, TimeUnit.MILLISECONDS));
-    scheduler.pending.add(ev);
+    scheduler.schedule(taskScheduler, ev, delay, TimeUnit.MILLISECONDS);
 
     log.fine("Execution complete: " + toString());
   }
@@ -2,13 +2,24 @@ package enterprises.orbital.evekit.sync.account;
 
 import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.evekit.account.SynchronizedEveAccount;
-import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+import enterprises.orbital.evekit.sync.DeadlineOrderedExecutor;
+import enterprises.orbital.evekit.sync.DowntimeGate;
+import enterprises.orbital.evekit.sync.ESIHttpClientPool;
 import enterprises.orbital.evekit.sync.EventScheduler;
+import enterprises.orbital.evekit.sync.KeyedSerialExecutor;
+import enterprises.orbital.evekit.sync.PermitLimitedExecutor;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -22,8 +33,35 @@ public class ESIAccountEventScheduler extends EventScheduler {
   // Choose among different scheduling regimes
   private static final String REGIME_SHARED = "shared";
   private static final String REGIME_DEDICATED = "dedicated";
+  // Per-account ordering on a bounded pool of max_threads.esi threads
+  private static final String REGIME_KEYED = "keyed";
+  // One virtual thread per sync, concurrency limited by virtual_permits rather than thread count
+  private static final String REGIME_VIRTUAL = "virtual";
+  private static final String PROP_VIRTUAL_PERMITS = "enterprises.orbital.evekit.account_sync_mgr.virtual_permits";
+  private static final int DEF_VIRTUAL_PERMITS = 50;
+  // Earliest deadline first on max_threads.esi threads, deadlines weighted by endpoint priority
+  private static final String REGIME_EDF = "edf";
+  // Separate pools (bulkheads) for groups of endpoints, e.g. long running vs fast syncs (see EndpointBulkheads)
+  private static final String REGIME_BULKHEAD = "bulkhead";
   private static final String PROP_SCHEDULING_REGIME = "enterprises.orbital.evekit.account_sync_mgr.sched_regime";
   private static final String DEF_SCHEDULING_REGIME = REGIME_SHARED;
+  // Share sync capacity fairly among users in front of any regime except dedicated (per group with bulkheads)
+  private static final String PROP_FAIR_QUEUE = "enterprises.orbital.evekit.account_sync_mgr.fair.enabled";
+  private static final boolean DEF_FAIR_QUEUE = false;
+  // Schedule journal for warm restarts.  Journaling is disabled unless a file is configured.
+  private static final String PROP_JOURNAL_FILE = "enterprises.orbital.evekit.account_sync_mgr.journal.file";
+  private static final String DEF_JOURNAL_FILE = "";
+  private static final String PROP_JOURNAL_SIZE = "enterprises.orbital.evekit.account_sync_mgr.journal.size";
+  private static final long DEF_JOURNAL_SIZE = 64L * 1024L * 1024L;
+  // Overdue syncs recovered from the journal are spread evenly over this interval
+  private static final String PROP_JOURNAL_REPLAY_SPREAD = "enterprises.orbital.evekit.account_sync_mgr.journal.replay_spread";
+  private static final long DEF_JOURNAL_REPLAY_SPREAD = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+  // Session mode: when a sync is dispatched, all other endpoints for the same account due within this window
+  // are dispatched with it as a single session.  Zero disables session mode.
+  private static final String PROP_SESSION_WINDOW = "enterprises.orbital.evekit.account_sync_mgr.session_window";
+  private static final long DEF_SESSION_WINDOW = 0L;
+  // Upper bound on how long the sync dispatcher sleeps before re-checking the queue
+  private static final long MAX_DISPATCH_WAIT = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
 
   /**
    * Scheduler interface to be used to schedule sync actions.
@@ -36,7 +74,18 @@ public class ESIAccountEventScheduler extends EventScheduler {
      *                return a default scheduler.
      * @return the appropriate ScheduledExecutorService
      */
-    ScheduledExecutorService getScheduler(SynchronizedEveAccount account);
+    default ScheduledExecutorService getScheduler(SynchronizedEveAccount account) {
+      return getScheduler(account == null ? -1L : account.getAid());
+    }
+
+    /**
+     * Return the appropriate ScheduledExecutorService for the given sync account ID.
+     *
+     * @param aid the ID of the account for which a scheduler is requested.  If negative, then
+     *            return a default scheduler.
+     * @return the appropriate ScheduledExecutorService
+     */
+    ScheduledExecutorService getScheduler(long aid);
   }
 
   // Run the check schedule event on a separate dedicated dispatcher.  This ensures that we are never starved
@@ -46,6 +95,36 @@ public class ESIAccountEventScheduler extends EventScheduler {
   // Chosen scheduling regime instance
   private SyncActionScheduler schedulingRegime;
 
+  // Schedule journal, or null if journaling is disabled
+  private ScheduleJournal journal;
+
+  // Syncs which are not yet due.  Syncs are moved to the pending registry (and become events) when dispatched.
+  // All access must synchronize on this queue.
+  private final PendingSyncQueue queued = new PendingSyncQueue();
+  // Count of syncs deferred because their cached responses were still fresh, guarded by the queue
+  private long deferred;
+  // Count of syncs deferred because their endpoint's circuit was open, guarded by the queue
+  private long suspended;
+  // Count of syncs deferred for server downtime or the ramp after it, guarded by the queue
+  private long downtimeDeferred;
+  // Spreads queued syncs so dispatch load stays flat, guarded by the queue
+  private final LoadLeveler leveler = new LoadLeveler();
+
+  // Thread which dispatches syncs from the queue when they are due
+  private Thread dispatcher;
+
+  // Endpoint priorities used to assign sync start deadlines
+  private final EndpointPriorities priorities = new EndpointPriorities();
+  // Sync pool for the EDF regime, null for other regimes
+  private DeadlineOrderedExecutor deadlineExecutor;
+  // Sync pools for the bulkhead regime, null for other regimes
+  private EndpointBulkheads bulkheads;
+  // Per-user fair queue in front of the regime, or null if disabled
+  private UserFairQueue fairQueue;
+
+  // Sync intervals stretched for endpoints whose data is not changing
+  private final AdaptiveSyncIntervals intervals = new AdaptiveSyncIntervals();
+
   public ESIAccountEventScheduler() {
     super();
     String regime = OrbitalProperties.getGlobalProperty(PROP_SCHEDULING_REGIME, DEF_SCHEDULING_REGIME);
@@ -57,13 +136,13 @@ public class ESIAccountEventScheduler extends EventScheduler {
           final ScheduledExecutorService defaultScheduler = Executors.newSingleThreadScheduledExecutor();
 
           @Override
-          public ScheduledExecutorService getScheduler(SynchronizedEveAccount account) {
-            if (account == null) return defaultScheduler;
+          public ScheduledExecutorService getScheduler(long aid) {
+            if (aid < 0) return defaultScheduler;
             synchronized (schedulerMap) {
-              ScheduledExecutorService service = schedulerMap.get(account.getAid());
+              ScheduledExecutorService service = schedulerMap.get(aid);
               if (service == null) {
                 service = Executors.newSingleThreadScheduledExecutor();
-                schedulerMap.put(account.getAid(), service);
+                schedulerMap.put(aid, service);
               }
               return service;
             }
@@ -71,6 +150,58 @@ public class ESIAccountEventScheduler extends EventScheduler {
         };
         break;
 
+      case REGIME_KEYED:
+        schedulingRegime = new SyncActionScheduler() {
+          final KeyedSerialExecutor executor = new KeyedSerialExecutor(Executors.newFixedThreadPool(
+              (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI)));
+          final ScheduledExecutorService defaultScheduler = Executors.newSingleThreadScheduledExecutor();
+
+          @Override
+          public ScheduledExecutorService getScheduler(long aid) {
+            return aid < 0 ? defaultScheduler : executor.forKey(aid);
+          }
+        };
+        break;
+
+      case REGIME_VIRTUAL:
+        schedulingRegime = new SyncActionScheduler() {
+          final ScheduledExecutorService service = new PermitLimitedExecutor(
+              "account-sync", (int) OrbitalProperties.getLongGlobalProperty(PROP_VIRTUAL_PERMITS, DEF_VIRTUAL_PERMITS));
+
+          @Override
+          public ScheduledExecutorService getScheduler(long aid) {
+            return service;
+          }
+        };
+        break;
+
+      case REGIME_EDF:
+        deadlineExecutor = new DeadlineOrderedExecutor(
+            "account-sync", (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI));
+        schedulingRegime = new SyncActionScheduler() {
+          final ScheduledExecutorService defaultScheduler = Executors.newSingleThreadScheduledExecutor();
+
+          @Override
+          public ScheduledExecutorService getScheduler(long aid) {
+            return aid < 0 ? defaultScheduler : deadlineExecutor;
+          }
+        };
+        break;
+
+      case REGIME_BULKHEAD:
+        bulkheads = new EndpointBulkheads(
+            (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI),
+            OrbitalProperties.getBooleanGlobalProperty(PROP_FAIR_QUEUE, DEF_FAIR_QUEUE));
+        schedulingRegime = new SyncActionScheduler() {
+          final ScheduledExecutorService defaultScheduler = Executors.newSingleThreadScheduledExecutor();
+
+          @Override
+          public ScheduledExecutorService getScheduler(long aid) {
+            return aid < 0 ? defaultScheduler : bulkheads;
+          }
+        };
+        break;
+
       case REGIME_SHARED:
         // fall through
       default:
@@ -79,20 +210,275 @@ public class ESIAccountEventScheduler extends EventScheduler {
               (int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI));
 
           @Override
-          public ScheduledExecutorService getScheduler(SynchronizedEveAccount account) {
+          public ScheduledExecutorService getScheduler(long aid) {
             return service;
           }
         };
         break;
     }
 
+    if (OrbitalProperties.getBooleanGlobalProperty(PROP_FAIR_QUEUE, DEF_FAIR_QUEUE)) {
+      if (REGIME_DEDICATED.equals(regime)) {
+        log.warning("Fair queueing is not supported with the dedicated regime, ignoring");
+      } else if (bulkheads != null) {
+        // Each bulkhead has its own fair queue, a single queue in front would let one group's backlog hold all
+        // released slots
+      } else {
+        String limitProperty = REGIME_VIRTUAL.equals(regime) ? PROP_VIRTUAL_PERMITS : PROP_MAX_THREADS_ESI;
+        long limitDefault = REGIME_VIRTUAL.equals(regime) ? DEF_VIRTUAL_PERMITS : DEF_MAX_THREADS_ESI;
+        int limit = (int) OrbitalProperties.getLongGlobalProperty(limitProperty, limitDefault);
+        SyncActionScheduler backing = schedulingRegime;
+        fairQueue = new UserFairQueue("account-sync", backing, limit);
+        schedulingRegime = aid -> aid < 0 ? backing.getScheduler(aid) : fairQueue;
+      }
+    }
+
     dispatch = checkService;
+
+    String journalFile = OrbitalProperties.getGlobalProperty(PROP_JOURNAL_FILE, DEF_JOURNAL_FILE);
+    if (journalFile != null && !journalFile.trim()
+                                           .isEmpty()) {
+      try {
+        long size = OrbitalProperties.getLongGlobalProperty(PROP_JOURNAL_SIZE, DEF_JOURNAL_SIZE);
+        journal = ScheduleJournal.open(journalFile.trim(), (int) Math.min(Integer.MAX_VALUE, size));
+        replayJournal();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to open schedule journal, continuing without journal: " + journalFile, e);
+        journal = null;
+      }
+    }
+    startDispatcher();
+  }
+
+  private void startDispatcher() {
+    dispatcher = new Thread(this::dispatchDueSyncs, "account-sync-dispatch");
+    dispatcher.start();
+  }
+
+  /**
+   * Queue a sync for the given account and endpoint.  The sync event, and the account and handler it
+   * requires, are created when the sync is dispatched.  The sync may be dispatched somewhat after the due time,
+   * since dispatch times are leveled to bound the number of syncs started per second.
+   *
+   * @param uid      ID of the user which owns the account
+   * @param aid      ID of the account to synchronize
+   * @param endpoint endpoint to synchronize
+   * @param dueTime  time when the sync should be dispatched
+   * @return true if the sync was queued, false if a sync is already queued or in progress for this
+   * account and endpoint.
+   */
+  boolean queueSync(long uid, long aid, ESISyncEndpoint endpoint, long dueTime) {
+    long dispatchTime = offer(uid, aid, endpoint, dueTime, true);
+    if (dispatchTime < 0) return false;
+    if (journal != null) journal.append(ScheduleJournal.RecordType.SCHEDULED, uid, aid, endpoint, dispatchTime);
+    return true;
+  }
+
+  // Queue a sync, optionally leveling its dispatch time.  Returns the dispatch time, or -1 if a sync is already
+  // queued or in progress.
+  private long offer(long uid, long aid, ESISyncEndpoint endpoint, long dueTime, boolean level) {
+    synchronized (queued) {
+      if (pending.hasUnfinished(new AccountEndpointKey(aid, endpoint)) || queued.contains(aid, endpoint.ordinal()))
+        return -1;
+      long dispatchTime = level ? leveler.assign(dueTime) : dueTime;
+      queued.offer(uid, aid, endpoint.ordinal(), dispatchTime);
+      // Wake the dispatcher in case this sync is now the earliest
+      if (queued.peekDue() == dispatchTime) queued.notifyAll();
+      return dispatchTime;
+    }
+  }
+
+  AdaptiveSyncIntervals getSyncIntervals() {
+    return intervals;
+  }
+
+  /**
+   * Check whether a sync is queued or in progress for the given account and endpoint.
+   *
+   * @param aid      ID of the account
+   * @param endpoint endpoint to check
+   * @return true if a sync is queued, or has been dispatched and is not yet done.
+   */
+  boolean hasUnfinishedSync(long aid, ESISyncEndpoint endpoint) {
+    synchronized (queued) {
+      return queued.contains(aid, endpoint.ordinal()) || pending.hasUnfinished(new AccountEndpointKey(aid,
+                                                                                                       endpoint));
+    }
+  }
+
+  /**
+   * Dispatch syncs as they become due.  Moving a sync from the queue to the pending registry happens under the
+   * queue lock so that a sync is always visible to {@link #hasUnfinishedSync(long, ESISyncEndpoint)}.  Each sync
+   * is given a start deadline from its due time and endpoint priority, which the EDF regime uses to order
+   * syncs waiting for a thread.
+   */
+  private void dispatchDueSyncs() {
+    ESISyncEndpoint[] endpoints = ESISyncEndpoint.values();
+    long sessionWindow = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_SESSION_WINDOW,
+                                                                              DEF_SESSION_WINDOW));
+    log.fine("Starting sync dispatcher");
+    while (!Thread.currentThread()
+                  .isInterrupted()) {
+      try {
+        synchronized (queued) {
+          long wait = queued.peekDue() - OrbitalProperties.getCurrentTime();
+          if (wait > 0) {
+            queued.wait(Math.min(wait, MAX_DISPATCH_WAIT));
+            continue;
+          }
+          long due = queued.peekDue();
+          long uid = queued.peekUid();
+          long aid = queued.peekAid();
+          ESISyncEndpoint endpoint = endpoints[queued.peekEndpoint()];
+          queued.poll();
+          if (deferIfNotReady(uid, aid, endpoint)) continue;
+          ScheduledExecutorService service = schedulingRegime.getScheduler(aid);
+          List<ESISyncEndpoint> session = sessionWindow > 0 ?
+              gatherSession(uid, aid, endpoint, OrbitalProperties.getCurrentTime() + sessionWindow) : null;
+          // Dispatch is journaled before submission so it always precedes the completion journaled by the event
+          long now = OrbitalProperties.getCurrentTime();
+          if (session != null && session.size() > 1) {
+            ESIAccountSyncSessionEvent ev = new ESIAccountSyncSessionEvent(uid, aid, session, service);
+            ev.setJournal(journal);
+            ev.setIntervals(intervals);
+            ev.setStartDeadline(priorities.startDeadline(session, due));
+            ev.journal(ScheduleJournal.RecordType.DISPATCHED, now);
+            try {
+              submit(service, ev);
+            } catch (RejectedExecutionException e) {
+              ev.journal(ScheduleJournal.RecordType.COMPLETED, now);
+              throw e;
+            }
+          } else {
+            ESIStandardAccountSyncEvent ev = new ESIStandardAccountSyncEvent(uid, aid, endpoint, service);
+            ev.setJournal(journal);
+            ev.setIntervals(intervals);
+            ev.setStartDeadline(priorities.startDeadline(endpoint, due));
+            ev.journal(ScheduleJournal.RecordType.DISPATCHED, now);
+            try {
+              submit(service, ev);
+            } catch (RejectedExecutionException e) {
+              ev.journal(ScheduleJournal.RecordType.COMPLETED, now);
+              throw e;
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        log.log(Level.WARNING, "Sync dispatcher interrupted, exiting", e);
+        Thread.currentThread()
+              .interrupt();
+      } catch (RuntimeException e) {
+        // The account checker will queue the sync again on its next cycle
+        log.log(Level.WARNING, "Failed to dispatch sync, continuing", e);
+      }
+    }
+  }
+
+  /**
+   * Requeue a due sync if it should not be dispatched yet.  A sync is deferred if every ESI response it used on
+   * its last run is still fresh in the response cache, in which case it is requeued for when the first of those
+   * responses expires.  A sync is also deferred while the EVE server is down (or dispatch is ramping back up
+   * after downtime), and while the circuit breaker for its endpoint is open, which defers every sync for that
+   * endpoint as it comes due.  Must hold the queue lock.
+   *
+   * @param uid      ID of the user which owns the account
+   * @param aid      account ID
+   * @param endpoint endpoint which is due
+   * @return true if the sync was deferred, false if it should be dispatched.
+   */
+  private boolean deferIfNotReady(long uid, long aid, ESISyncEndpoint endpoint) {
+    long now = OrbitalProperties.getCurrentTime();
+    ESIHttpClientPool clientPool = ESIHttpClientPool.getInstance();
+    long until = clientPool.getCache()
+                           .freshUntil(new AccountEndpointKey(aid, endpoint));
+    boolean fresh = until > now;
+    // Responses for many accounts tend to expire together, so level the retry
+    if (fresh) until = leveler.assign(until);
+    boolean downtime = false;
+    if (!fresh) {
+      until = DowntimeGate.getInstance()
+                          .blockedUntil();
+      downtime = until > now;
+    }
+    // Only consult the breaker if the sync would otherwise run, since a half open breaker admits it as a probe
+    if (!fresh && !downtime) until = clientPool.getBreaker()
+                                               .blockedUntil(endpoint);
+    if (until <= now || !queued.offer(uid, aid, endpoint.ordinal(), until))
+      return false;
+    if (fresh) deferred++;
+    else if (downtime) downtimeDeferred++;
+    else suspended++;
+    if (journal != null) journal.append(ScheduleJournal.RecordType.SCHEDULED, uid, aid, endpoint, until);
+    log.fine((fresh ? "Cached responses still fresh" : downtime ? "Server downtime" : "Circuit open") +
+                 ", deferring sync: aid=" + aid + " endpoint=" + endpoint);
+    return true;
+  }
+
+  /**
+   * Remove and return all queued syncs for an account which are due before the given time.  Syncs which are
+   * not ready (see {@link #deferIfNotReady}) are deferred rather than joining the session.  Must hold the queue
+   * lock.
+   *
+   * @param uid    ID of the user which owns the account
+   * @param aid    account ID
+   * @param first  endpoint which is already due, always first in the session
+   * @param before syncs due before this time join the session
+   * @return endpoints in the session, in due order
+   */
+  private List<ESISyncEndpoint> gatherSession(long uid, long aid, ESISyncEndpoint first, long before) {
+    List<ESISyncEndpoint> session = new ArrayList<>();
+    List<Long> due = new ArrayList<>();
+    for (ESISyncEndpoint next : ESISyncEndpoint.values()) {
+      // A session runs in a single bulkhead, so only gather endpoints from the same group as the first
+      if (bulkheads != null && !bulkheads.sameGroup(first, next)) continue;
+      long nextDue = queued.dueTime(aid, next.ordinal());
+      if (nextDue > before) continue;
+      // Insert in due order
+      int pos = 0;
+      while (pos < due.size() && due.get(pos) <= nextDue)
+        pos++;
+      session.add(pos, next);
+      due.add(pos, nextDue);
+    }
+    for (ESISyncEndpoint next : session)
+      queued.remove(aid, next.ordinal());
+    session.removeIf(next -> deferIfNotReady(uid, aid, next));
+    session.add(0, first);
+    return session;
+  }
+
+  /**
+   * Requeue syncs which were pending when the process last stopped.  Accounts and handlers are resolved
+   * when each sync is dispatched, so replay does not touch the database.  Syncs which are already overdue
+   * (including syncs which were in progress) are spread over the replay interval rather than dispatched at once.
+   * The account checker only consults the database for endpoints which have no queued or in progress sync, so
+   * replayed syncs are not checked again.
+   */
+  private void replayJournal() {
+    long now = OrbitalProperties.getCurrentTime();
+    List<ScheduleJournal.Entry> entries = journal.replay();
+    List<ScheduleJournal.Entry> overdue = new ArrayList<>();
+    int scheduled = 0;
+    for (ScheduleJournal.Entry next : entries) {
+      if (next.dispatched || next.time <= now) {
+        overdue.add(next);
+        continue;
+      }
+      offer(next.uid, next.aid, next.endpoint, next.time, false);
+      scheduled++;
+    }
+    long spread = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_JOURNAL_REPLAY_SPREAD,
+                                                                       DEF_JOURNAL_REPLAY_SPREAD));
+    for (int i = 0; i < overdue.size(); i++) {
+      ScheduleJournal.Entry next = overdue.get(i);
+      offer(next.uid, next.aid, next.endpoint, now + spread * i / overdue.size(), false);
+    }
+    log.info("Replayed schedule journal: " + scheduled + " scheduled, " + overdue.size() + " overdue");
   }
 
   private void dispatchAccountCheckSchedule() {
     AccountCheckScheduleEvent accountChecker = new AccountCheckScheduleEvent(this, schedulingRegime, checkService);
-    accountChecker.setTracker(checkService.submit(accountChecker));
-    pending.add(accountChecker);
+    submit(checkService, accountChecker);
   }
 
   @Override
@@ -106,24 +492,38 @@ public class ESIAccountEventScheduler extends EventScheduler {
 
   @Override
   public void statusCheck() {
+    // Restart the sync dispatcher if it died
+    if (!dispatcher.isAlive()) {
+      log.severe("Sync dispatcher died, restarting");
+      startDispatcher();
+    }
+    synchronized (queued) {
+      log.fine("Queued syncs: " + queued.size() + " next due: " + queued.peekDue() + " deferred: " + deferred +
+                   " suspended: " + suspended + " downtime: " + downtimeDeferred + " " + leveler);
+    }
+    log.fine("Downtime: " + DowntimeGate.getInstance());
+    AccountLockQueue.getInstance()
+                    .prune();
+    log.fine("Account lock waits: " + AccountLockQueue.getInstance());
+    if (deadlineExecutor != null) log.fine("Sync pool: " + deadlineExecutor);
+    if (bulkheads != null) log.fine("Sync bulkheads: " + bulkheads);
+    if (fairQueue != null) log.fine("Fair queue: " + fairQueue);
+    intervals.prune();
+    log.fine("Sync intervals: " + intervals);
+    log.fine("ESI connections: " + ESIHttpClientPool.getInstance());
+
     // Make sure a check schedule event is still in the pending queue and ready to run.  If it died for some
     // reason, then add it back in.
-    synchronized (pending) {
-      for (ControllerEvent next : pending) {
-        if (next instanceof AccountCheckScheduleEvent &&
-            !next.getTracker()
-                 .isDone())
-          // Event already scheduled and not yet run
-          return;
-      }
+    if (pending.hasUnfinished(AccountCheckScheduleEvent.class))
+      // Event already scheduled and not yet run
+      return;
 
-      // We end up here in one of two cases:
-      //
-      // 1. no check schedule event is in the pending queue
-      // 2. there IS a check schedule event, but it's done and no new event has been queued yet
-      //
-      // In either case, we need to add a new checker for liveness
-      dispatchAccountCheckSchedule();
-    }
+    // We end up here in one of two cases:
+    //
+    // 1. no check schedule event is in the pending queue
+    // 2. there IS a check schedule event, but it's done and no new event has been queued yet
+    //
+    // In either case, we need to add a new checker for liveness
+    dispatchAccountCheckSchedule();
   }
 }
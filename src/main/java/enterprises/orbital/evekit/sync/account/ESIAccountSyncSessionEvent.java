@@ -0,0 +1,207 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.account.SynchronizedEveAccount;
+import enterprises.orbital.evekit.model.ESIAccountSynchronizationHandler;
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.sync.ESICircuitBreaker;
+import enterprises.orbital.evekit.sync.ESIHttpClientPool;
+import enterprises.orbital.evekit.sync.ESIResponseCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synchronize several endpoints for a single account in one dispatch.  The account is resolved once, the
+ * account lock is taken once, and a single client provider (and the account entity holding the access token)
+ * is shared by every handler in the session.  Endpoints are synchronized in the order given.
+ */
+public class ESIAccountSyncSessionEvent extends ControllerEvent implements Runnable {
+  public static final Logger log = Logger.getLogger(ESIAccountSyncSessionEvent.class.getName());
+  // Max delay per endpoint used before handlers have been created
+  private static final String PROP_DEFAULT_MAX_DELAY = "enterprises.orbital.evekit.sync_terminate_delay";
+  private static final long DEF_DEFAULT_MAX_DELAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+  private final long uid;
+  private final long aid;
+  private final List<ESISyncEndpoint> endpoints;
+  private final ExecutorService scheduler;
+  // Handlers in endpoint order, created at dispatch
+  private List<ESIAccountSynchronizationHandler> handlers;
+  // Journal which records dispatch and completion of each endpoint, may be null
+  private ScheduleJournal journal;
+  // Wait queue entry, created the first time this event parks on the account lock
+  private AccountLockQueue.Waiter lockWaiter;
+  // Adaptive intervals updated as each endpoint completes, may be null
+  private AdaptiveSyncIntervals intervals;
+
+  ESIAccountSyncSessionEvent(long uid, long aid, List<ESISyncEndpoint> endpoints, ExecutorService scheduler) {
+    this.uid = uid;
+    this.aid = aid;
+    this.endpoints = new ArrayList<>(endpoints);
+    this.scheduler = scheduler;
+  }
+
+  void setJournal(ScheduleJournal journal) {
+    this.journal = journal;
+  }
+
+  void setIntervals(AdaptiveSyncIntervals intervals) {
+    this.intervals = intervals;
+  }
+
+  /**
+   * Handlers run one after another, so the session is allowed the sum of their maximum delays.
+   */
+  @Override
+  public long maxDelayTime() {
+    if (handlers == null)
+      return endpoints.size() * OrbitalProperties.getLongGlobalProperty(PROP_DEFAULT_MAX_DELAY, DEF_DEFAULT_MAX_DELAY);
+    long total = 0;
+    for (ESIAccountSynchronizationHandler next : handlers) {
+      total += next.maxDelay();
+      if (total < 0) return Long.MAX_VALUE;
+    }
+    return total;
+  }
+
+  /**
+   * Sync queries time out at the event deadline, so a sync cancelled by the watchdog does not leave queries running.
+   */
+  @Override
+  protected boolean boundsQueries() {
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "ESIAccountSyncSessionEvent{" +
+        "aid=" + aid +
+        ", endpoints=" + endpoints +
+        ", scheduler=" + scheduler +
+        '}';
+  }
+
+  @Override
+  public Collection<?> getIndexKeys() {
+    List<AccountEndpointKey> keys = new ArrayList<>(endpoints.size());
+    for (ESISyncEndpoint next : endpoints)
+      keys.add(new AccountEndpointKey(aid, next));
+    return keys;
+  }
+
+  public List<ESISyncEndpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  public long getAid() {
+    return aid;
+  }
+
+  public long getUid() {
+    return uid;
+  }
+
+  /**
+   * Record a change in the state of each endpoint in this session in the schedule journal, if journaling is enabled.
+   *
+   * @param type record type
+   * @param time time of the change
+   */
+  void journal(ScheduleJournal.RecordType type, long time) {
+    if (journal == null) return;
+    for (ESISyncEndpoint next : endpoints)
+      journal.append(type, uid, aid, next, time);
+  }
+
+  // Resolve the account once and create a handler for each endpoint.  Returns false if the account no longer exists.
+  private boolean resolveHandlers() {
+    try {
+      SynchronizedEveAccount account = ESIStandardAccountSyncEvent.resolveAccount(uid, aid);
+      if (account == null) {
+        log.fine("Account no longer exists, skipping: " + toString());
+        return false;
+      }
+      List<ESIAccountSynchronizationHandler> resolved = new ArrayList<>(endpoints.size());
+      for (ESISyncEndpoint next : endpoints)
+        resolved.add(AccountCheckScheduleEvent.generateHandler(next, account));
+      handlers = resolved;
+      return true;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to resolve account, skipping: " + toString(), e);
+      return false;
+    }
+  }
+
+  @Override
+  public void run() {
+    log.fine("Starting execution: " + toString());
+    // Resolve handlers first so the watchdog sees the handlers' max delay
+    if (handlers == null && !resolveHandlers()) return;
+    boolean resumed = lockWaiter != null;
+    super.run();
+    // Take the account lock once for the whole session, parking if it is held
+    ReentrantLock lck = SynchronizedEveAccount.getSyncAccountLock(handlers.get(0)
+                                                                          .account());
+    AccountLockQueue locks = AccountLockQueue.getInstance();
+    if (lockWaiter == null) lockWaiter = new AccountLockQueue.Waiter(() -> resume(scheduler));
+    park();
+    if (!locks.acquireOrPark(aid, lck, lockWaiter, resumed)) {
+      log.fine("Account lock held, parking: " + toString());
+      return;
+    }
+    unpark();
+    try {
+      AccountSyncClientProvider provider = new AccountSyncClientProvider(scheduler);
+      ESIResponseCache cache = ESIHttpClientPool.getInstance()
+                                                .getCache();
+      ESICircuitBreaker breaker = ESIHttpClientPool.getInstance()
+                                                   .getBreaker();
+      for (int i = 0; i < handlers.size(); i++) {
+        ESIAccountSynchronizationHandler next = handlers.get(i);
+        AccountEndpointKey key = new AccountEndpointKey(aid, endpoints.get(i));
+        if (Thread.currentThread()
+                  .isInterrupted()) {
+          log.warning("Session interrupted, abandoning remaining endpoints: " + toString());
+          break;
+        }
+        cache.beginCapture(key);
+        breaker.enter(endpoints.get(i));
+        try {
+          next.synch(provider);
+          boolean changed = cache.endCapture(key);
+          if (intervals != null)
+            intervals.observe(aid, endpoints.get(i), changed, OrbitalProperties.getCurrentTime());
+        } catch (RuntimeException e) {
+          // Don't let one endpoint prevent the rest of the session from syncing
+          log.log(Level.WARNING, "Endpoint sync failed, continuing session: " + next, e);
+          cache.endCapture(key);
+          cache.forget(key);
+          if (intervals != null) intervals.forget(aid, endpoints.get(i));
+        } finally {
+          breaker.exit();
+        }
+      }
+    } finally {
+      locks.release(aid, lck);
+    }
+    log.fine("Execution complete: " + toString());
+  }
+
+  /**
+   * Journal completion whenever this event is done, including when it is cancelled while queued or parked.
+   */
+  @Override
+  protected void completed() {
+    journal(ScheduleJournal.RecordType.COMPLETED, OrbitalProperties.getCurrentTime());
+  }
+
+}
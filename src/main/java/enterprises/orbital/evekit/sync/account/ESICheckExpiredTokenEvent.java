@@ -134,8 +134,7 @@ public class ESICheckExpiredTokenEvent extends ControllerEvent implements Runnab
     long delay = OrbitalProperties.getLongGlobalProperty(PROP_ALERT_CHECK_DELAY, DEF_ALERT_CHECK_DELAY);
     log.fine("Scheduling event to occur in " + delay + " milliseconds");
     ControllerEvent ev = new ESICheckExpiredTokenEvent(scheduler, taskScheduler);
-    ev.setTracker(taskScheduler.schedule(ev, delay, TimeUnit.MILLISECONDS));
-    scheduler.pending.add(ev);
+    scheduler.schedule(taskScheduler, ev, delay, TimeUnit.MILLISECONDS);
 
     log.fine("Execution complete: " + toString());
   }
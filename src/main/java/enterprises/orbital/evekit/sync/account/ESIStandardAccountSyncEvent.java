@@ -1,12 +1,21 @@
 package enterprises.orbital.evekit.sync.account;
 
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.account.AccountNotFoundException;
+import enterprises.orbital.evekit.account.EveKitUserAccount;
 import enterprises.orbital.evekit.account.SynchronizedEveAccount;
+import enterprises.orbital.evekit.account.UserNotFoundException;
 import enterprises.orbital.evekit.model.ESIAccountSynchronizationHandler;
 import enterprises.orbital.evekit.model.ESISyncEndpoint;
 import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.sync.ESICircuitBreaker;
+import enterprises.orbital.evekit.sync.ESIHttpClientPool;
+import enterprises.orbital.evekit.sync.ESIResponseCache;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -14,9 +23,21 @@ import java.util.logging.Logger;
 
 public class ESIStandardAccountSyncEvent extends ControllerEvent implements Runnable {
   public static final Logger log = Logger.getLogger(ESIStandardAccountSyncEvent.class.getName());
+  // Max delay used before the handler for a lazily resolved event has been created
+  private static final String PROP_DEFAULT_MAX_DELAY = "enterprises.orbital.evekit.sync_terminate_delay";
+  private static final long DEF_DEFAULT_MAX_DELAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
   protected ESISyncEndpoint endpoint;
   protected ESIAccountSynchronizationHandler handler;
   protected ExecutorService scheduler;
+  protected long uid;
+  protected long aid;
+  // Journal which records dispatch and completion of this event, may be null
+  private ScheduleJournal journal;
+  // Wait queue entry, created the first time this event parks on the account lock
+  private AccountLockQueue.Waiter lockWaiter;
+  // Adaptive intervals updated when this sync completes, may be null
+  private AdaptiveSyncIntervals intervals;
 
   public ESIStandardAccountSyncEvent(ESISyncEndpoint endpoint,
                                      ESIAccountSynchronizationHandler handler,
@@ -24,11 +45,48 @@ public class ESIStandardAccountSyncEvent extends ControllerEvent implements Runn
     this.endpoint = endpoint;
     this.handler = handler;
     this.scheduler = scheduler;
+    this.uid = handler.account()
+                      .getUserAccount()
+                      .getUid();
+    this.aid = handler.account()
+                      .getAid();
+  }
+
+  /**
+   * Create an event for which the account and handler are resolved when the event is dispatched.
+   *
+   * @param uid       ID of the user which owns the account
+   * @param aid       ID of the synchronized account
+   * @param endpoint  endpoint to synchronize
+   * @param scheduler scheduler passed to the handler
+   */
+  public ESIStandardAccountSyncEvent(long uid, long aid, ESISyncEndpoint endpoint, ExecutorService scheduler) {
+    this.endpoint = endpoint;
+    this.scheduler = scheduler;
+    this.uid = uid;
+    this.aid = aid;
+  }
+
+  void setJournal(ScheduleJournal journal) {
+    this.journal = journal;
+  }
+
+  void setIntervals(AdaptiveSyncIntervals intervals) {
+    this.intervals = intervals;
   }
 
   @Override
   public long maxDelayTime() {
-    return handler.maxDelay();
+    return handler != null ? handler.maxDelay() :
+        OrbitalProperties.getLongGlobalProperty(PROP_DEFAULT_MAX_DELAY, DEF_DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * Sync queries time out at the event deadline, so a sync cancelled by the watchdog does not leave queries running.
+   */
+  @Override
+  protected boolean boundsQueries() {
+    return true;
   }
 
   @Override
@@ -40,14 +98,74 @@ public class ESIStandardAccountSyncEvent extends ControllerEvent implements Runn
         '}';
   }
 
+  @Override
+  public Collection<?> getIndexKeys() {
+    return Collections.singletonList(new AccountEndpointKey(aid, endpoint));
+  }
+
   public ESISyncEndpoint getEndpoint() {
     return endpoint;
   }
 
+  /**
+   * Return the handler for this event.  Lazily resolved events have no handler until dispatched.
+   *
+   * @return the handler for this event, or null if not yet resolved.
+   */
   public ESIAccountSynchronizationHandler getHandler() {
     return handler;
   }
 
+  public long getAid() {
+    return aid;
+  }
+
+  public long getUid() {
+    return uid;
+  }
+
+  /**
+   * Look up a synchronized account by owner and account ID.
+   *
+   * @param uid ID of the user which owns the account
+   * @param aid ID of the synchronized account
+   * @return the account, or null if the user or account no longer exists.
+   * @throws IOException on a database error
+   */
+  static SynchronizedEveAccount resolveAccount(long uid, long aid) throws IOException {
+    try {
+      return SynchronizedEveAccount.getSynchronizedAccount(EveKitUserAccount.getAccount(uid), aid, false);
+    } catch (UserNotFoundException | AccountNotFoundException e) {
+      return null;
+    }
+  }
+
+  // Create the handler for a lazily resolved event.  Returns false if the account no longer exists.
+  private boolean resolveHandler() {
+    try {
+      SynchronizedEveAccount account = resolveAccount(uid, aid);
+      if (account == null) {
+        log.fine("Account no longer exists, skipping: " + toString());
+        return false;
+      }
+      handler = AccountCheckScheduleEvent.generateHandler(endpoint, account);
+      return true;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to resolve account, skipping: " + toString(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Record a change in the state of this sync in the schedule journal, if journaling is enabled.
+   *
+   * @param type record type
+   * @param time time of the change
+   */
+  void journal(ScheduleJournal.RecordType type, long time) {
+    if (journal != null) journal.append(type, uid, aid, endpoint, time);
+  }
+
   public ExecutorService getScheduler() {
     return scheduler;
   }
@@ -55,30 +173,53 @@ public class ESIStandardAccountSyncEvent extends ControllerEvent implements Runn
   @Override
   public void run() {
     log.fine("Starting execution: " + toString());
+    // Resolve the handler first so the watchdog sees the handler's max delay
+    if (handler == null && !resolveHandler()) return;
+    boolean resumed = lockWaiter != null;
     super.run();
     // Sync activities on a per-account basis to prevent certain data races.
-    // Note that we bound the time we wait for the lock to avoid starving
-    // other tasks queued in the thread pool.
+    // If the lock is held, park this event on the account's wait queue rather than
+    // holding a thread.  We're resumed when the current holder releases the lock.
     ReentrantLock lck = SynchronizedEveAccount.getSyncAccountLock(handler.account());
-    int maxDelay = ThreadLocalRandom.current()
-                                    .nextInt(30);
+    AccountLockQueue locks = AccountLockQueue.getInstance();
+    if (lockWaiter == null) lockWaiter = new AccountLockQueue.Waiter(() -> resume(scheduler));
+    park();
+    if (!locks.acquireOrPark(aid, lck, lockWaiter, resumed)) {
+      log.fine("Account lock held, parking: " + toString());
+      return;
+    }
+    unpark();
+    // Record the responses this sync depends on so the dispatcher can defer the next sync while they are fresh
+    ESIResponseCache cache = ESIHttpClientPool.getInstance()
+                                              .getCache();
+    ESICircuitBreaker breaker = ESIHttpClientPool.getInstance()
+                                                 .getBreaker();
+    AccountEndpointKey key = new AccountEndpointKey(aid, endpoint);
+    cache.beginCapture(key);
+    boolean completed = false;
     try {
-      // Wait no less than 30 and no more than 60 sexonds for the lock.  If we fail
-      // to obtain the lock, then yield this thread and wait for account checker to
-      // reschedule us.
-      if (!lck.tryLock(30 + maxDelay, TimeUnit.SECONDS)) {
-        log.fine("Failed to obtain lock, yielding thread: " + toString());
-        return;
-      }
+      breaker.enter(endpoint);
       handler.synch(new AccountSyncClientProvider(scheduler));
-    } catch (InterruptedException e) {
-      log.log(Level.WARNING, "Interrupted while waiting for lock", e);
+      completed = true;
     } finally {
-      // Must verify we hold the lock first since the case where we fail to
-      // obtain the lock is included in the same try block.
-      if (lck.isHeldByCurrentThread()) lck.unlock();
+      breaker.exit();
+      boolean changed = cache.endCapture(key);
+      if (!completed) cache.forget(key);
+      if (intervals != null) {
+        if (completed) intervals.observe(aid, endpoint, changed, OrbitalProperties.getCurrentTime());
+        else intervals.forget(aid, endpoint);
+      }
+      locks.release(aid, lck);
     }
     log.fine("Execution complete: " + toString());
   }
 
+  /**
+   * Journal completion whenever this event is done, including when it is cancelled while queued or parked.
+   */
+  @Override
+  protected void completed() {
+    journal(ScheduleJournal.RecordType.COMPLETED, OrbitalProperties.getCurrentTime());
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.sync.TimerBackedScheduledExecutor;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Run account syncs on separate pools (bulkheads) according to endpoint, so slow endpoints (e.g. corporation
+ * assets for a large corporation, which may take minutes) can only ever occupy their own pool's threads and
+ * never delay fast, latency sensitive endpoints.  Each group has its own threads and queue.  Endpoints not
+ * assigned to a group run on the default group.
+ * <p>
+ * Groups are named by account_sync_mgr.bulkhead.groups (comma separated).  Each group is configured with
+ * account_sync_mgr.bulkhead.GROUP.threads and account_sync_mgr.bulkhead.GROUP.endpoints (comma separated
+ * endpoint names).  Threads are named account-sync-GROUP-N.  Session events are routed by their first endpoint,
+ * and sessions only gather endpoints from the same group (see {@link #sameGroup(ESISyncEndpoint,
+ * ESISyncEndpoint)}).  Tasks which are not syncs (e.g. a handler's parallel requests) run in the group of the
+ * sync which submitted them.
+ * <p>
+ * With fair queueing enabled each group has its own {@link UserFairQueue} in front of its pool, so users are
+ * served fairly within a group while a backlog in one group can still never hold threads of another.
+ */
+final class EndpointBulkheads extends TimerBackedScheduledExecutor {
+  private static final Logger log = Logger.getLogger(EndpointBulkheads.class.getName());
+  private static final String PROP_PREFIX = "enterprises.orbital.evekit.account_sync_mgr.bulkhead.";
+  private static final String PROP_GROUPS = PROP_PREFIX + "groups";
+  private static final String DEF_GROUPS = "slow,fast";
+  private static final String DEFAULT_GROUP = "default";
+  // Default configuration for the built in groups
+  private static final long DEF_SLOW_THREADS = 4;
+  private static final String DEF_SLOW_ENDPOINTS = "CHAR_ASSETS,CORP_ASSETS,CORP_WALLET_JOURNAL,CHAR_MAIL," +
+      "CHAR_KILL_MAIL,CORP_KILL_MAIL,CORP_BLUEPRINTS,CORP_CONTAINER_LOGS";
+  private static final long DEF_FAST_THREADS = 2;
+  private static final String DEF_FAST_ENDPOINTS = "CHAR_ONLINE,CHAR_LOCATION,CHAR_SHIP_TYPE,CHAR_WALLET_BALANCE," +
+      "CORP_WALLET_BALANCE,CHAR_FATIGUE";
+
+  // One bulkhead
+  private static final class Group {
+    final String name;
+    final ScheduledThreadPoolExecutor pool;
+    // Fair queue in front of the pool, or null if fair queueing is disabled
+    final UserFairQueue fairQueue;
+
+    Group(String name, int threads, boolean fair) {
+      this.name = name;
+      AtomicInteger count = new AtomicInteger(0);
+      this.pool = new ScheduledThreadPoolExecutor(Math.max(1, threads), r -> new Thread(
+          r, "account-sync-" + name + "-" + count.getAndIncrement()));
+      this.fairQueue = fair ? new UserFairQueue("account-sync-" + name, aid -> pool, pool.getCorePoolSize()) : null;
+    }
+
+    void execute(Runnable command) {
+      if (fairQueue != null) fairQueue.execute(command);
+      else pool.execute(command);
+    }
+  }
+
+  private final List<Group> groups = new ArrayList<>();
+  private final Group defaultGroup;
+  private final Map<ESISyncEndpoint, Group> byEndpoint = new EnumMap<>(ESISyncEndpoint.class);
+
+  /**
+   * Create bulkheads from configuration.
+   *
+   * @param defaultThreads number of threads for endpoints not assigned to a group
+   * @param fair           if true, queue syncs fairly by user within each group
+   */
+  EndpointBulkheads(int defaultThreads, boolean fair) {
+    super(createTimer("account-sync-bulkhead-timer"));
+    defaultGroup = new Group(DEFAULT_GROUP, defaultThreads, fair);
+    groups.add(defaultGroup);
+    String names = OrbitalProperties.getGlobalProperty(PROP_GROUPS, DEF_GROUPS);
+    for (String name : names.split(",")) {
+      name = name.trim();
+      if (name.isEmpty() || name.equals(DEFAULT_GROUP)) continue;
+      long threads = OrbitalProperties.getLongGlobalProperty(PROP_PREFIX + name + ".threads",
+                                                             "fast".equals(name) ? DEF_FAST_THREADS :
+                                                                 DEF_SLOW_THREADS);
+      String endpoints = OrbitalProperties.getGlobalProperty(PROP_PREFIX + name + ".endpoints",
+                                                             "slow".equals(name) ? DEF_SLOW_ENDPOINTS :
+                                                                 "fast".equals(name) ? DEF_FAST_ENDPOINTS : "");
+      Group group = new Group(name, (int) threads, fair);
+      groups.add(group);
+      for (String endpoint : endpoints.split(",")) {
+        endpoint = endpoint.trim();
+        if (endpoint.isEmpty()) continue;
+        try {
+          Group previous = byEndpoint.put(ESISyncEndpoint.valueOf(endpoint), group);
+          if (previous != null)
+            log.warning("Endpoint " + endpoint + " moved from bulkhead " + previous.name + " to " + name);
+        } catch (IllegalArgumentException e) {
+          log.warning("Unknown endpoint in bulkhead " + name + ", ignoring: " + endpoint);
+        }
+      }
+    }
+    log.info("Sync bulkheads: " + this);
+  }
+
+  private Group groupOf(ESISyncEndpoint endpoint) {
+    return byEndpoint.getOrDefault(endpoint, defaultGroup);
+  }
+
+  private Group groupOf(ControllerEvent ev) {
+    if (ev instanceof ESIStandardAccountSyncEvent)
+      return groupOf(((ESIStandardAccountSyncEvent) ev).getEndpoint());
+    if (ev instanceof ESIAccountSyncSessionEvent)
+      return groupOf(((ESIAccountSyncSessionEvent) ev).getEndpoints()
+                                                      .get(0));
+    return defaultGroup;
+  }
+
+  /**
+   * Check whether two endpoints run in the same bulkhead.
+   *
+   * @param a first endpoint
+   * @param b second endpoint
+   * @return true if both endpoints are assigned to the same group
+   */
+  boolean sameGroup(ESISyncEndpoint a, ESISyncEndpoint b) {
+    return groupOf(a) == groupOf(b);
+  }
+
+  /**
+   * Return the total number of threads across all groups.
+   *
+   * @return thread count
+   */
+  int getThreadCount() {
+    int total = 0;
+    for (Group next : groups)
+      total += next.pool.getCorePoolSize();
+    return total;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+    // Tasks which are not syncs are submitted by a running sync (if any) and stay in its group
+    ControllerEvent ev = ControllerEvent.eventOf(command);
+    groupOf(ev != null ? ev : ControllerEvent.current()).execute(command);
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    for (Group next : groups) {
+      if (next.fairQueue != null) next.fairQueue.shutdown();
+      next.pool.shutdown();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("EndpointBulkheads{");
+    for (int i = 0; i < groups.size(); i++) {
+      Group next = groups.get(i);
+      if (i > 0) out.append(", ");
+      out.append(next.name)
+         .append("=")
+         .append(next.pool.getActiveCount())
+         .append('/')
+         .append(next.pool.getCorePoolSize())
+         .append(" queued=")
+         .append(next.pool.getQueue()
+                          .size());
+      if (next.fairQueue != null) out.append(' ')
+                                     .append(next.fairQueue);
+    }
+    return out.append('}')
+              .toString();
+  }
+
+}
@@ -0,0 +1,93 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configured dispatch priority for each sync endpoint.  A sync's start deadline is its due time plus a lateness
+ * tolerance divided by the priority of its endpoint, so when the sync pool is backlogged a high priority sync
+ * runs ahead of lower priority syncs which came due somewhat earlier.  A low priority sync is only delayed by a
+ * bounded amount, since its deadline does not move while newer work arrives.
+ * <p>
+ * The priority of an endpoint is set with the property account_sync_mgr.priority.ENDPOINT (e.g.
+ * account_sync_mgr.priority.CHAR_WALLET_JOURNAL).  Priorities are at least one.
+ */
+final class EndpointPriorities {
+  private static final String PROP_PRIORITY_PREFIX = "enterprises.orbital.evekit.account_sync_mgr.priority.";
+  private static final long DEF_PRIORITY = 1;
+  // Lateness tolerated for a priority one sync before it is considered late
+  private static final String PROP_TOLERANCE = "enterprises.orbital.evekit.account_sync_mgr.edf.tolerance";
+  private static final long DEF_TOLERANCE = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+
+  // Built in priorities for time sensitive endpoints, overridden by configuration
+  private static final Map<ESISyncEndpoint, Long> DEFAULTS = new EnumMap<>(ESISyncEndpoint.class);
+
+  static {
+    for (ESISyncEndpoint next : new ESISyncEndpoint[]{ESISyncEndpoint.CHAR_WALLET_JOURNAL,
+                                                      ESISyncEndpoint.CORP_WALLET_JOURNAL,
+                                                      ESISyncEndpoint.CHAR_WALLET_TRANSACTIONS,
+                                                      ESISyncEndpoint.CORP_WALLET_TRANSACTIONS,
+                                                      ESISyncEndpoint.CHAR_MARKET,
+                                                      ESISyncEndpoint.CORP_MARKET,
+                                                      ESISyncEndpoint.CHAR_CONTRACTS,
+                                                      ESISyncEndpoint.CORP_CONTRACTS,
+                                                      ESISyncEndpoint.CHAR_INDUSTRY,
+                                                      ESISyncEndpoint.CORP_INDUSTRY})
+      DEFAULTS.put(next, 4L);
+    for (ESISyncEndpoint next : new ESISyncEndpoint[]{ESISyncEndpoint.CHAR_WALLET_BALANCE,
+                                                      ESISyncEndpoint.CORP_WALLET_BALANCE,
+                                                      ESISyncEndpoint.CHAR_ASSETS,
+                                                      ESISyncEndpoint.CORP_ASSETS,
+                                                      ESISyncEndpoint.CHAR_MAIL,
+                                                      ESISyncEndpoint.CHAR_NOTIFICATIONS,
+                                                      ESISyncEndpoint.CHAR_SKILL_QUEUE})
+      DEFAULTS.put(next, 2L);
+  }
+
+  private final long tolerance;
+  private final long[] priority = new long[ESISyncEndpoint.values().length];
+
+  EndpointPriorities() {
+    tolerance = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_TOLERANCE, DEF_TOLERANCE));
+    for (ESISyncEndpoint next : ESISyncEndpoint.values()) {
+      long def = DEFAULTS.getOrDefault(next, DEF_PRIORITY);
+      priority[next.ordinal()] = Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_PRIORITY_PREFIX +
+                                                                                          next.name(), def));
+    }
+  }
+
+  long priority(ESISyncEndpoint endpoint) {
+    return priority[endpoint.ordinal()];
+  }
+
+  /**
+   * Return the start deadline for a sync.
+   *
+   * @param endpoint endpoint to synchronize
+   * @param dueTime  time when the sync came due
+   * @return time by which the sync should start
+   */
+  long startDeadline(ESISyncEndpoint endpoint, long dueTime) {
+    return dueTime + tolerance / priority(endpoint);
+  }
+
+  /**
+   * Return the start deadline for a session, which is the earliest deadline of its endpoints.
+   *
+   * @param endpoints endpoints in the session
+   * @param dueTime   time when the session came due
+   * @return time by which the session should start
+   */
+  long startDeadline(Collection<ESISyncEndpoint> endpoints, long dueTime) {
+    long deadline = Long.MAX_VALUE;
+    for (ESISyncEndpoint next : endpoints)
+      deadline = Math.min(deadline, startDeadline(next, dueTime));
+    return deadline;
+  }
+
+}
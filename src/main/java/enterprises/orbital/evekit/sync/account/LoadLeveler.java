@@ -0,0 +1,143 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assign sync dispatch times so that no more than a configured number of syncs are admitted in any one second.
+ * Each requested time is first jittered, so that syncs created in the same cycle drift out of phase, then moved to
+ * the first one second slot at or after it which still has room.  Overdue syncs are treated as due now, so a
+ * wave of overdue syncs (e.g. after a restart or a re-authorization wave) is spread over the following seconds
+ * at the admission rate rather than dispatched at once.
+ * <p>
+ * The admission rate ramps up linearly from a tenth of the configured rate over a startup interval, so a
+ * freshly started process warms its connection pools and caches gradually.  Slots are tracked in a ring covering
+ * a fixed horizon.  Times beyond the horizon are only jittered, and syncs which do not fit in the horizon are
+ * spread evenly over the interval following it.
+ * <p>
+ * This class is not thread safe.  Callers must synchronize access.
+ */
+final class LoadLeveler {
+  // Syncs admitted per second.  Zero disables leveling.
+  private static final String PROP_RATE = "enterprises.orbital.evekit.account_sync_mgr.level.rate";
+  private static final long DEF_RATE = 20;
+  // Maximum random delay added to each sync
+  private static final String PROP_JITTER = "enterprises.orbital.evekit.account_sync_mgr.level.jitter";
+  private static final long DEF_JITTER = TimeUnit.MILLISECONDS.convert(15, TimeUnit.SECONDS);
+  // Interval over which the admission rate ramps up after startup
+  private static final String PROP_STARTUP_RAMP = "enterprises.orbital.evekit.account_sync_mgr.level.startup_ramp";
+  private static final long DEF_STARTUP_RAMP = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+  // Number of one second slots tracked
+  private static final int HORIZON = 6 * 3600;
+  private static final long SLOT = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+
+  private final long rate;
+  private final long jitter;
+  private final long startupRamp;
+  private final long started;
+  // Ring of slots: the second each slot currently represents, and syncs admitted in that second
+  private final long[] slotSecond = new long[HORIZON];
+  private final int[] slotCount = new int[HORIZON];
+  // Every slot from fullFrom (inclusive) to fullTo (exclusive) is known to be full.  Counts for a second never
+  // decrease, so this stays true until the range passes out of the horizon.
+  private long fullFrom;
+  private long fullTo;
+  // Syncs moved to a later slot, total and maximum delay added by leveling (excluding jitter)
+  private long leveled;
+  private long totalDelay;
+  private long maxDelay;
+
+  LoadLeveler() {
+    rate = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_RATE, DEF_RATE));
+    jitter = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_JITTER, DEF_JITTER));
+    startupRamp = Math.max(0L, OrbitalProperties.getLongGlobalProperty(PROP_STARTUP_RAMP, DEF_STARTUP_RAMP));
+    started = OrbitalProperties.getCurrentTime();
+    Arrays.fill(slotSecond, -1L);
+  }
+
+  // Admissions allowed in the slot starting at the given time
+  private long capacity(long slotStart) {
+    long elapsed = slotStart - started;
+    if (startupRamp == 0 || elapsed >= startupRamp) return rate;
+    long floor = Math.max(1L, rate / 10);
+    return Math.max(floor, floor + (rate - floor) * Math.max(0L, elapsed) / startupRamp);
+  }
+
+  /**
+   * Assign a dispatch time for a sync.
+   *
+   * @param requested time when the sync is due
+   * @return time when the sync should be dispatched, never earlier than the requested time (or now if overdue)
+   */
+  long assign(long requested) {
+    long now = OrbitalProperties.getCurrentTime();
+    long time = Math.max(requested, now);
+    if (rate == 0) return time;
+    if (jitter > 0) time += ThreadLocalRandom.current()
+                                             .nextLong(jitter);
+    long second = time / SLOT;
+    long first = now / SLOT;
+    long last = first + HORIZON - 1;
+    if (second > last) return time;
+    long next = second;
+    while (next <= last) {
+      // Skip slots already known to be full
+      if (next >= fullFrom && next < fullTo) {
+        next = fullTo;
+        continue;
+      }
+      int slot = (int) (next % HORIZON);
+      if (slotSecond[slot] != next) {
+        slotSecond[slot] = next;
+        slotCount[slot] = 0;
+      }
+      if (slotCount[slot] >= capacity(next * SLOT)) {
+        next++;
+        continue;
+      }
+      slotCount[slot]++;
+      markFull(second, slotCount[slot] >= capacity(next * SLOT) ? next + 1 : next);
+      if (next == second) return time;
+      return leveled(time, next * SLOT + ThreadLocalRandom.current()
+                                                           .nextLong(SLOT));
+    }
+    // The horizon is full, spread the overflow over the following interval
+    markFull(second, last + 1);
+    return leveled(time, (last + 1) * SLOT + ThreadLocalRandom.current()
+                                                              .nextLong(HORIZON * SLOT));
+  }
+
+  // Record that every slot from "from" (inclusive) to "to" (exclusive) is full
+  private void markFull(long from, long to) {
+    if (to <= from) return;
+    if (from <= fullTo && to >= fullFrom) {
+      fullFrom = Math.min(fullFrom, from);
+      fullTo = Math.max(fullTo, to);
+    } else {
+      fullFrom = from;
+      fullTo = to;
+    }
+  }
+
+  private long leveled(long time, long assigned) {
+    long delay = assigned - time;
+    leveled++;
+    totalDelay += delay;
+    maxDelay = Math.max(maxDelay, delay);
+    return assigned;
+  }
+
+  @Override
+  public String toString() {
+    return "LoadLeveler{" +
+        "rate=" + rate +
+        ", leveled=" + leveled +
+        ", avgDelay=" + (leveled == 0 ? 0 : totalDelay / leveled) +
+        ", maxDelay=" + maxDelay +
+        '}';
+  }
+
+}
@@ -0,0 +1,251 @@
+package enterprises.orbital.evekit.sync.account;
+
+import java.util.Arrays;
+
+/**
+ * Min-heap of account syncs which are not yet due, ordered by due time.  Entries are stored in parallel
+ * primitive arrays (due time, user ID, account ID and endpoint ordinal) so a pending sync costs a few dozen
+ * bytes rather than an event, handler, account entity and scheduled future.  An open addressing index from
+ * (account, endpoint) to heap position allows constant time membership checks and removal.
+ * <p>
+ * This class is not thread safe.  Callers must synchronize access.
+ */
+final class PendingSyncQueue {
+  private static final int MIN_CAPACITY = 64;
+  // Marks an empty index slot.  Keys are never negative since account IDs are non-negative.
+  private static final long EMPTY = -1L;
+
+  // Heap arrays
+  private long[] due;
+  private long[] uid;
+  private long[] aid;
+  private short[] endpoint;
+  private int size;
+
+  // Index from key to heap position.  Capacity is always a power of two at least twice the heap capacity.
+  private long[] indexKeys;
+  private int[] indexPositions;
+
+  PendingSyncQueue() {
+    allocate(MIN_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    due = new long[capacity];
+    uid = new long[capacity];
+    aid = new long[capacity];
+    endpoint = new short[capacity];
+    indexKeys = new long[capacity * 2];
+    indexPositions = new int[capacity * 2];
+    Arrays.fill(indexKeys, EMPTY);
+  }
+
+  // Key combining account and endpoint ordinal
+  private static long key(long aid, int ordinal) {
+    return (aid << 8) | ordinal;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Check whether a sync is queued for the given account and endpoint.
+   *
+   * @param aid     account ID
+   * @param ordinal endpoint ordinal
+   * @return true if a sync is queued, false otherwise.
+   */
+  boolean contains(long aid, int ordinal) {
+    return indexSlot(key(aid, ordinal)) >= 0;
+  }
+
+  /**
+   * Return the due time of the sync queued for the given account and endpoint.
+   *
+   * @param aid     account ID
+   * @param ordinal endpoint ordinal
+   * @return due time, or Long.MAX_VALUE if no sync is queued.
+   */
+  long dueTime(long aid, int ordinal) {
+    int slot = indexSlot(key(aid, ordinal));
+    return slot < 0 ? Long.MAX_VALUE : due[indexPositions[slot]];
+  }
+
+  /**
+   * Queue a sync.  At most one sync may be queued for a given account and endpoint.
+   *
+   * @param uid     ID of the user which owns the account
+   * @param aid     account ID
+   * @param ordinal endpoint ordinal
+   * @param dueTime time when the sync should be dispatched
+   * @return true if the sync was queued, false if a sync was already queued for this account and endpoint.
+   */
+  boolean offer(long uid, long aid, int ordinal, long dueTime) {
+    if (contains(aid, ordinal)) return false;
+    if (size == due.length) grow();
+    int pos = size++;
+    this.due[pos] = dueTime;
+    this.uid[pos] = uid;
+    this.aid[pos] = aid;
+    this.endpoint[pos] = (short) ordinal;
+    indexPut(key(aid, ordinal), pos);
+    siftUp(pos);
+    return true;
+  }
+
+  /**
+   * Remove the queued sync for the given account and endpoint, if any.
+   *
+   * @param aid     account ID
+   * @param ordinal endpoint ordinal
+   * @return true if a sync was removed, false otherwise.
+   */
+  boolean remove(long aid, int ordinal) {
+    int slot = indexSlot(key(aid, ordinal));
+    if (slot < 0) return false;
+    removeAt(indexPositions[slot]);
+    return true;
+  }
+
+  /**
+   * Return the due time of the earliest sync.
+   *
+   * @return earliest due time, or Long.MAX_VALUE if the queue is empty.
+   */
+  long peekDue() {
+    return size == 0 ? Long.MAX_VALUE : due[0];
+  }
+
+  long peekUid() {
+    return uid[0];
+  }
+
+  long peekAid() {
+    return aid[0];
+  }
+
+  int peekEndpoint() {
+    return endpoint[0];
+  }
+
+  /**
+   * Remove the earliest sync.  The queue must not be empty.
+   */
+  void poll() {
+    removeAt(0);
+  }
+
+  private void removeAt(int pos) {
+    indexRemove(key(aid[pos], endpoint[pos]));
+    int last = --size;
+    if (pos == last) return;
+    move(last, pos);
+    siftDown(pos);
+    siftUp(pos);
+  }
+
+  private void siftUp(int pos) {
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (due[parent] <= due[pos]) break;
+      swap(pos, parent);
+      pos = parent;
+    }
+  }
+
+  private void siftDown(int pos) {
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) break;
+      if (child + 1 < size && due[child + 1] < due[child]) child++;
+      if (due[pos] <= due[child]) break;
+      swap(pos, child);
+      pos = child;
+    }
+  }
+
+  private void swap(int a, int b) {
+    long t = due[a];
+    due[a] = due[b];
+    due[b] = t;
+    t = uid[a];
+    uid[a] = uid[b];
+    uid[b] = t;
+    t = aid[a];
+    aid[a] = aid[b];
+    aid[b] = t;
+    short s = endpoint[a];
+    endpoint[a] = endpoint[b];
+    endpoint[b] = s;
+    indexPositions[indexSlot(key(aid[a], endpoint[a]))] = a;
+    indexPositions[indexSlot(key(aid[b], endpoint[b]))] = b;
+  }
+
+  // Move the entry at "from" to "to", overwriting the entry at "to"
+  private void move(int from, int to) {
+    due[to] = due[from];
+    uid[to] = uid[from];
+    aid[to] = aid[from];
+    endpoint[to] = endpoint[from];
+    indexPositions[indexSlot(key(aid[to], endpoint[to]))] = to;
+  }
+
+  private void grow() {
+    long[] oldDue = due, oldUid = uid, oldAid = aid;
+    short[] oldEndpoint = endpoint;
+    allocate(due.length * 2);
+    System.arraycopy(oldDue, 0, due, 0, size);
+    System.arraycopy(oldUid, 0, uid, 0, size);
+    System.arraycopy(oldAid, 0, aid, 0, size);
+    System.arraycopy(oldEndpoint, 0, endpoint, 0, size);
+    for (int i = 0; i < size; i++)
+      indexPut(key(aid[i], endpoint[i]), i);
+  }
+
+  private int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & (indexKeys.length - 1);
+  }
+
+  // Return the index slot holding key, or -1 if not present
+  private int indexSlot(long key) {
+    int mask = indexKeys.length - 1;
+    for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+      long k = indexKeys[slot];
+      if (k == key) return slot;
+      if (k == EMPTY) return -1;
+    }
+  }
+
+  private void indexPut(long key, int pos) {
+    int mask = indexKeys.length - 1;
+    int slot = hash(key);
+    while (indexKeys[slot] != EMPTY)
+      slot = (slot + 1) & mask;
+    indexKeys[slot] = key;
+    indexPositions[slot] = pos;
+  }
+
+  // Remove a key using backward shift deletion so probe sequences stay intact
+  private void indexRemove(long key) {
+    int mask = indexKeys.length - 1;
+    int hole = indexSlot(key);
+    if (hole < 0) return;
+    for (int slot = (hole + 1) & mask; indexKeys[slot] != EMPTY; slot = (slot + 1) & mask) {
+      int home = hash(indexKeys[slot]);
+      // Shift the entry back if its home slot is not between the hole and its current slot
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        indexKeys[hole] = indexKeys[slot];
+        indexPositions[hole] = indexPositions[slot];
+        hole = slot;
+      }
+    }
+    indexKeys[hole] = EMPTY;
+  }
+
+}
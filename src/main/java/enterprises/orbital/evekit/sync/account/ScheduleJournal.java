@@ -0,0 +1,279 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only, memory-mapped journal of account sync events.  Each scheduled, dispatched and completed
+ * sync is recorded as a fixed size record.  On startup the journal is replayed to recover the in-memory
+ * schedule without waiting for a full database scan.  Records are written to the mapped region directly, so
+ * they survive a process crash (but not necessarily a host crash).  When the journal fills, it is compacted
+ * to the set of syncs which are still live.
+ * <p>
+ * A completion only retires a dispatched sync.  A sync may be scheduled again just before the previous sync's
+ * completion is recorded, and that schedule must survive.
+ * <p>
+ * Record layout (32 bytes): time (8), user id (8), account id (8), endpoint ordinal (2), record type (1),
+ * reserved (1), check word (4).  A record with an invalid check word marks the end of the journal.
+ */
+class ScheduleJournal {
+  private static final Logger log = Logger.getLogger(ScheduleJournal.class.getName());
+  private static final long MAGIC = 0x45564b4a524e4c31L;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int RECORD_SIZE = 32;
+  // Signature of endpoint ordinals.  A journal written against a different endpoint list is discarded.
+  private static final int ENDPOINT_SIGNATURE = Arrays.toString(ESISyncEndpoint.values())
+                                                      .hashCode();
+
+  enum RecordType {
+    SCHEDULED,
+    DISPATCHED,
+    COMPLETED
+  }
+
+  /**
+   * A sync which was scheduled or dispatched, but not completed, when the journal was replayed.
+   */
+  static final class Entry {
+    final long uid;
+    final long aid;
+    final ESISyncEndpoint endpoint;
+    // Scheduled time for scheduled syncs, dispatch time for dispatched syncs
+    final long time;
+    final boolean dispatched;
+
+    Entry(long uid, long aid, ESISyncEndpoint endpoint, long time, boolean dispatched) {
+      this.uid = uid;
+      this.aid = aid;
+      this.endpoint = endpoint;
+      this.time = time;
+      this.dispatched = dispatched;
+    }
+  }
+
+  private final Path path;
+  private int capacity;
+  private MappedByteBuffer buffer;
+  private boolean failed;
+
+  private ScheduleJournal(Path path, int capacity) {
+    this.path = path;
+    this.capacity = Math.max(HEADER_SIZE + RECORD_SIZE, capacity - (capacity - HEADER_SIZE) % RECORD_SIZE);
+  }
+
+  /**
+   * Open or create a journal.
+   *
+   * @param file     journal file name
+   * @param capacity size of the mapped journal in bytes
+   * @return the opened journal
+   * @throws IOException if the journal can not be mapped
+   */
+  static ScheduleJournal open(String file, int capacity) throws IOException {
+    Path path = Paths.get(file);
+    // Never map less than an existing journal, it may have grown during compaction
+    if (Files.exists(path))
+      capacity = (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - RECORD_SIZE, Files.size(path)));
+    ScheduleJournal journal = new ScheduleJournal(path, capacity);
+    journal.map(journal.path);
+    if (journal.buffer.getLong(0) != MAGIC || journal.buffer.getInt(8) != VERSION || journal.buffer.getInt(
+        12) != ENDPOINT_SIGNATURE) {
+      log.info("Initializing new schedule journal: " + file);
+      journal.reset(journal.buffer);
+    }
+    journal.buffer.position(journal.scanEnd());
+    return journal;
+  }
+
+  private void map(Path target) throws IOException {
+    try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private void reset(MappedByteBuffer target) {
+    for (int i = 0; i < HEADER_SIZE + RECORD_SIZE; i += 8)
+      target.putLong(i, 0L);
+    target.putLong(0, MAGIC);
+    target.putInt(8, VERSION);
+    target.putInt(12, ENDPOINT_SIGNATURE);
+  }
+
+  private static int check(long time, long uid, long aid, int ordinal, int type) {
+    long h = time * 31 + uid;
+    h = h * 31 + aid;
+    h = h * 31 + ordinal;
+    h = h * 31 + type;
+    int c = (int) (h ^ (h >>> 32));
+    // Zero is reserved to mark unwritten space
+    return c == 0 ? 1 : c;
+  }
+
+  // Return the offset just past the last valid record.
+  private int scanEnd() {
+    int offset = HEADER_SIZE;
+    while (offset + RECORD_SIZE <= capacity && validAt(offset))
+      offset += RECORD_SIZE;
+    return offset;
+  }
+
+  private boolean validAt(int offset) {
+    int check = buffer.getInt(offset + 28);
+    return check != 0 && check == check(buffer.getLong(offset), buffer.getLong(offset + 8),
+                                        buffer.getLong(offset + 16), buffer.getShort(offset + 24),
+                                        buffer.get(offset + 26));
+  }
+
+  // Key combining account and endpoint ordinal
+  private static long key(long aid, int ordinal) {
+    return (aid << 8) | ordinal;
+  }
+
+  // Fold journal records into the set of syncs which have not completed
+  private Map<Long, Entry> fold() {
+    Map<Long, Entry> live = new LinkedHashMap<>();
+    ESISyncEndpoint[] endpoints = ESISyncEndpoint.values();
+    int end = buffer.position();
+    for (int offset = HEADER_SIZE; offset < end; offset += RECORD_SIZE) {
+      long time = buffer.getLong(offset);
+      long uid = buffer.getLong(offset + 8);
+      long aid = buffer.getLong(offset + 16);
+      int ordinal = buffer.getShort(offset + 24);
+      int type = buffer.get(offset + 26);
+      if (ordinal < 0 || ordinal >= endpoints.length || type < 0 || type >= RecordType.values().length) continue;
+      long key = key(aid, ordinal);
+      switch (RecordType.values()[type]) {
+        case SCHEDULED:
+          live.put(key, new Entry(uid, aid, endpoints[ordinal], time, false));
+          break;
+        case DISPATCHED:
+          live.put(key, new Entry(uid, aid, endpoints[ordinal], time, true));
+          break;
+        case COMPLETED:
+        default:
+          Entry current = live.get(key);
+          if (current != null && current.dispatched) live.remove(key);
+          break;
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Return all syncs which were scheduled or dispatched but never completed.
+   *
+   * @return list of live journal entries
+   */
+  synchronized List<Entry> replay() {
+    if (failed) return new ArrayList<>();
+    return new ArrayList<>(fold().values());
+  }
+
+  /**
+   * Append a record to the journal.  Journal failures are logged and disable further journaling, but are
+   * never propagated to the caller.
+   *
+   * @param type     record type
+   * @param uid      user account ID
+   * @param aid      synchronized account ID
+   * @param endpoint sync endpoint
+   * @param time     scheduled time or time of dispatch/completion
+   */
+  synchronized void append(RecordType type, long uid, long aid, ESISyncEndpoint endpoint, long time) {
+    if (failed) return;
+    try {
+      if (buffer.remaining() < RECORD_SIZE) compact();
+      int offset = buffer.position();
+      int ordinal = endpoint.ordinal();
+      buffer.putLong(offset, time);
+      buffer.putLong(offset + 8, uid);
+      buffer.putLong(offset + 16, aid);
+      buffer.putShort(offset + 24, (short) ordinal);
+      buffer.put(offset + 26, (byte) type.ordinal());
+      buffer.put(offset + 27, (byte) 0);
+      // Check word last so a partially written record is never considered valid
+      buffer.putInt(offset + 28, check(time, uid, aid, ordinal, type.ordinal()));
+      buffer.position(offset + RECORD_SIZE);
+      if (buffer.remaining() >= RECORD_SIZE)
+        // Terminate in case stale records remain from a previous journal generation
+        buffer.putInt(offset + RECORD_SIZE + 28, 0);
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.WARNING, "Schedule journal failed, journaling disabled: " + path, e);
+      failed = true;
+    }
+  }
+
+  // Rewrite the journal with only live records, growing the journal if it would remain mostly full.
+  private void compact() throws IOException {
+    Map<Long, Entry> live = fold();
+    long needed = HEADER_SIZE + (long) live.size() * RECORD_SIZE;
+    if (needed * 4 > (long) capacity * 3) {
+      long grown = Math.min(Integer.MAX_VALUE - RECORD_SIZE, Math.max(needed * 2, (long) capacity * 2));
+      capacity = (int) (grown - (grown - HEADER_SIZE) % RECORD_SIZE);
+    }
+    log.info("Compacting schedule journal: " + live.size() + " live records, capacity " + capacity);
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.deleteIfExists(tmp);
+    MappedByteBuffer old = buffer;
+    map(tmp);
+    reset(buffer);
+    buffer.position(HEADER_SIZE);
+    for (Entry next : live.values()) {
+      RecordType type = next.dispatched ? RecordType.DISPATCHED : RecordType.SCHEDULED;
+      append(type, next.uid, next.aid, next.endpoint, next.time);
+    }
+    buffer.force();
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    unmap(old);
+  }
+
+  // Release a mapping now rather than when it is garbage collected, which may be never for a long lived buffer.
+  // There is no public API for this, so use the JDK internal cleaner when available.  The buffer must not be used
+  // afterwards.
+  private static void unmap(MappedByteBuffer target) {
+    try {
+      try {
+        // Java 9 and later
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+                   .invoke(field.get(null), target);
+      } catch (NoSuchMethodException e) {
+        // Java 8
+        Method cleanerMethod = target.getClass()
+                                     .getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(target);
+        if (cleaner != null) cleaner.getClass()
+                                    .getMethod("clean")
+                                    .invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.log(Level.FINE, "Unable to unmap old schedule journal, leaving it to the garbage collector", e);
+    }
+  }
+
+}
@@ -0,0 +1,281 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.sync.TimerBackedScheduledExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Share account sync capacity fairly among users.  Sync events are queued per owning user and released to the
+ * underlying scheduling regime, at most a fixed number at a time, by deficit round robin: each user in turn is
+ * credited a quantum of thread time scaled by the user's weight, and may start syncs while its credit is
+ * positive.  Each sync is charged its actual running time, so a user whose syncs are slow (e.g. large
+ * corporations) gets proportionally fewer of them rather than more of the pool.  Within a user, syncs are
+ * started in start deadline order.
+ * <p>
+ * A parked event releases its share when its run returns, and queues again behind its user's other syncs when
+ * resumed.  Tasks which are not account sync events (e.g. a handler's parallel requests) bypass the queue and
+ * run on a pool owned by the queue, with as many threads as the queue's concurrency.  They are not queued since
+ * the sync which submitted them already holds its share, and they do not run on the regime's threads, where they
+ * could wait behind syncs which are waiting for them.
+ * Released syncs reach the regime still identifiable as events (see {@link ControllerEvent#eventOf(Runnable)}),
+ * so the regime can order or route them as it would without the queue.  The time each sync waits in the queue is
+ * tracked per active user and reported as lag.
+ */
+final class UserFairQueue extends TimerBackedScheduledExecutor {
+  private static final Logger log = Logger.getLogger(UserFairQueue.class.getName());
+  // Thread time in milliseconds credited to a weight one user per round
+  private static final String PROP_QUANTUM = "enterprises.orbital.evekit.account_sync_mgr.fair.quantum";
+  private static final long DEF_QUANTUM = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+  // Weight of a user, e.g. account_sync_mgr.fair.weight.1234
+  private static final String PROP_WEIGHT_PREFIX = "enterprises.orbital.evekit.account_sync_mgr.fair.weight.";
+  private static final long DEF_WEIGHT = 1;
+  // Number of users listed in the lag report
+  private static final int LAG_REPORT_USERS = 5;
+
+  // A queued sync
+  private static final class Task implements Comparable<Task> {
+    final Runnable task;
+    final ControllerEvent event;
+    final long aid;
+    final long deadline;
+    final long seq;
+    final long queuedAt;
+    // Cost charged when released, guarded by the fair queue
+    long charged;
+
+    Task(Runnable task, ControllerEvent event, long aid, long deadline, long seq, long queuedAt) {
+      this.task = task;
+      this.event = event;
+      this.aid = aid;
+      this.deadline = deadline;
+      this.seq = seq;
+      this.queuedAt = queuedAt;
+    }
+
+    @Override
+    public int compareTo(Task o) {
+      int c = Long.compare(deadline, o.deadline);
+      return c != 0 ? c : Long.compare(seq, o.seq);
+    }
+  }
+
+  // Queue and accounting for one user, guarded by the fair queue
+  private static final class User {
+    final long uid;
+    final long weight;
+    final PriorityQueue<Task> queue = new PriorityQueue<>();
+    // Remaining credit in milliseconds of thread time, and expected cost of the next sync
+    long deficit;
+    long estimate;
+    int running;
+    boolean active;
+    // Smoothed and maximum time syncs waited in the queue
+    long lag;
+    long maxLag;
+
+    User(long uid, long weight, long estimate) {
+      this.uid = uid;
+      this.weight = weight;
+      this.estimate = estimate;
+    }
+  }
+
+  private final ESIAccountEventScheduler.SyncActionScheduler regime;
+  // Runs tasks which are not syncs, e.g. work handed off by running syncs
+  private final ThreadPoolExecutor tasks;
+  private final int concurrency;
+  private final long quantum;
+  private final Map<Long, User> users = new HashMap<>();
+  // Users with queued syncs in round robin order, head is the user being served
+  private final ArrayDeque<User> ring = new ArrayDeque<>();
+  private int running;
+  private long seq;
+  private long started;
+  // Smoothed cost of a sync across all users, the initial estimate for a new user
+  private long averageCost;
+
+  /**
+   * Create a fair queue in front of a scheduling regime.
+   *
+   * @param name        prefix for thread names
+   * @param regime      regime which runs syncs once released
+   * @param concurrency maximum number of syncs released and not yet finished
+   */
+  UserFairQueue(String name, ESIAccountEventScheduler.SyncActionScheduler regime, int concurrency) {
+    super(createTimer(name + "-fair-timer"));
+    this.regime = regime;
+    this.concurrency = Math.max(1, concurrency);
+    AtomicInteger count = new AtomicInteger(0);
+    tasks = new ThreadPoolExecutor(this.concurrency, this.concurrency, 60, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, name + "-fair-task-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    tasks.allowCoreThreadTimeOut(true);
+    quantum = Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_QUANTUM, DEF_QUANTUM));
+    averageCost = quantum;
+    log.info("Fair queueing by user: concurrency=" + this.concurrency + " quantum=" + quantum);
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+    ControllerEvent ev = ControllerEvent.eventOf(command);
+    long uid, aid;
+    if (ev instanceof ESIStandardAccountSyncEvent) {
+      uid = ((ESIStandardAccountSyncEvent) ev).getUid();
+      aid = ((ESIStandardAccountSyncEvent) ev).getAid();
+    } else if (ev instanceof ESIAccountSyncSessionEvent) {
+      uid = ((ESIAccountSyncSessionEvent) ev).getUid();
+      aid = ((ESIAccountSyncSessionEvent) ev).getAid();
+    } else {
+      tasks.execute(command);
+      return;
+    }
+    long now = OrbitalProperties.getCurrentTime();
+    long deadline = ev.getStartDeadline();
+    synchronized (this) {
+      User user = users.get(uid);
+      if (user == null) {
+        user = new User(uid, Math.max(1L, OrbitalProperties.getLongGlobalProperty(PROP_WEIGHT_PREFIX + uid,
+                                                                                  DEF_WEIGHT)), averageCost);
+        users.put(uid, user);
+      }
+      user.queue.add(new Task(command, ev, aid, deadline == Long.MAX_VALUE ? now : deadline, seq++, now));
+      if (!user.active) {
+        user.active = true;
+        ring.addLast(user);
+      }
+    }
+    pump();
+  }
+
+  // Release queued syncs while there is capacity
+  private void pump() {
+    while (true) {
+      User user;
+      Task next;
+      synchronized (this) {
+        if (running >= concurrency || ring.isEmpty()) return;
+        user = ring.peekFirst();
+        // When the head user's credit is used up its turn ends, and the next user's turn begins with a fresh
+        // quantum of credit.  Every turn adds credit, so this terminates.
+        while (user.deficit <= 0) {
+          ring.addLast(ring.pollFirst());
+          user = ring.peekFirst();
+          user.deficit += user.weight * quantum;
+        }
+        next = user.queue.poll();
+        next.charged = user.estimate;
+        user.deficit -= next.charged;
+        if (user.queue.isEmpty()) {
+          ring.pollFirst();
+          user.active = false;
+        }
+        long wait = OrbitalProperties.getCurrentTime() - next.queuedAt;
+        user.lag = (user.lag * 7 + wait) / 8;
+        user.maxLag = Math.max(user.maxLag, wait);
+        user.running++;
+        running++;
+        started++;
+      }
+      release(user, next);
+    }
+  }
+
+  private void release(User user, Task next) {
+    try {
+      // Wrapped so the regime still sees the event, e.g. to order by deadline or route by endpoint
+      regime.getScheduler(next.aid)
+            .execute(ControllerEvent.runsEvent(next.event, () -> run(user, next)));
+    } catch (RejectedExecutionException e) {
+      finished(user, next, next.charged);
+      if (next.task instanceof Future) ((Future<?>) next.task).cancel(false);
+    }
+  }
+
+  private void run(User user, Task next) {
+    long start = System.nanoTime();
+    try {
+      next.task.run();
+    } finally {
+      finished(user, next, TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+      pump();
+    }
+  }
+
+  // Charge a finished sync's actual cost in place of the estimate it was charged at release
+  private synchronized void finished(User user, Task next, long cost) {
+    running--;
+    user.running--;
+    // Credit is capped at one quantum so a user can not bank capacity while others are idle
+    user.deficit = Math.min(user.weight * quantum, user.deficit + next.charged - cost);
+    user.estimate = Math.max(1L, (user.estimate * 3 + cost) / 4);
+    averageCost = Math.max(1L, (averageCost * 15 + cost) / 16);
+    // As in deficit round robin, a user which goes idle starts over with no credit or debt.  The cost estimate
+    // is kept for when the user next has syncs.
+    if (!user.active && user.running == 0) user.deficit = 0;
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    tasks.shutdown();
+  }
+
+  /**
+   * Return the smoothed time syncs for a user have waited in the queue.
+   *
+   * @param uid user ID
+   * @return lag in milliseconds, or 0 if the user has not synchronized.
+   */
+  synchronized long getLag(long uid) {
+    User user = users.get(uid);
+    return user == null ? 0L : user.lag;
+  }
+
+  @Override
+  public synchronized String toString() {
+    List<User> lagging = new ArrayList<>();
+    for (User next : users.values())
+      if (next.active || next.running > 0) lagging.add(next);
+    lagging.sort((a, b) -> Long.compare(b.lag, a.lag));
+    StringBuilder out = new StringBuilder("UserFairQueue{running=").append(running)
+                                                                 .append(", users=")
+                                                                 .append(users.size())
+                                                                 .append(", active=")
+                                                                 .append(ring.size())
+                                                                 .append(", started=")
+                                                                 .append(started)
+                                                                 .append(", lag=[");
+    for (int i = 0; i < Math.min(LAG_REPORT_USERS, lagging.size()); i++) {
+      User next = lagging.get(i);
+      if (i > 0) out.append(", ");
+      out.append(next.uid)
+         .append(':')
+         .append(next.lag)
+         .append('/')
+         .append(next.maxLag)
+         .append(" queued=")
+         .append(next.queue.size());
+    }
+    return out.append("]}")
+              .toString();
+  }
+
+}
@@ -36,8 +36,7 @@ public class DeleteEventScheduler extends EventScheduler {
       for (SynchronizedEveAccount next : SynchronizedEveAccount.getAllMarkedForDelete()) {
         if (AccountDeleter.deletable(next) == null) {
           DeleteEvent deleteEvent = new DeleteEvent(next);
-          deleteEvent.setTracker(dispatch.submit(deleteEvent));
-          pending.add(deleteEvent);
+          submit(dispatch, deleteEvent);
         }
       }
     } catch (IOException e) {
@@ -49,8 +48,7 @@ public class DeleteEventScheduler extends EventScheduler {
       long delay = OrbitalProperties.getLongGlobalProperty(PROP_DELETE_CHECK_INTERVAL, DEF_DELETE_CHECK_INTERVAL);
       log.info("No events to dispatch, sleeping for " + TimeUnit.MINUTES.convert(delay, TimeUnit.MILLISECONDS) + " minutes");
       SleepEvent sleeper = new SleepEvent(delay);
-      sleeper.setTracker(dispatch.submit(sleeper));
-      pending.add(sleeper);
+      submit(dispatch, sleeper);
     } else {
       log.info("Dispatched " + pending.size() + " delete tasks");
     }
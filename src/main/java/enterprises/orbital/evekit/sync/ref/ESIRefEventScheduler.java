@@ -2,6 +2,7 @@ package enterprises.orbital.evekit.sync.ref;
 
 import enterprises.orbital.base.OrbitalProperties;
 import enterprises.orbital.evekit.sync.EventScheduler;
+import enterprises.orbital.evekit.sync.PermitLimitedExecutor;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -15,19 +16,38 @@ public class ESIRefEventScheduler extends EventScheduler {
   // Configuration for each scheduler type
   private static final String PROP_MAX_THREADS_ESI = "enterprises.orbital.evekit.ref_sync_mgr.max_threads.esi";
   private static final int DEF_MAX_THREADS_ESI = 10;
+  // Choose among different scheduling regimes
+  private static final String REGIME_SHARED = "shared";
+  private static final String REGIME_VIRTUAL = "virtual";
+  private static final String PROP_SCHEDULING_REGIME = "enterprises.orbital.evekit.ref_sync_mgr.sched_regime";
+  private static final String DEF_SCHEDULING_REGIME = REGIME_SHARED;
+  // Concurrency limit for the virtual regime
+  private static final String PROP_VIRTUAL_PERMITS = "enterprises.orbital.evekit.ref_sync_mgr.virtual_permits";
+  private static final int DEF_VIRTUAL_PERMITS = 20;
 
   // Alias for thread pool executor which exposes scheduling classes
   private ScheduledExecutorService dispatchAlias;
 
   public ESIRefEventScheduler() {
     super();
-    dispatch = dispatchAlias = Executors.newScheduledThreadPool((int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI));
+    String regime = OrbitalProperties.getGlobalProperty(PROP_SCHEDULING_REGIME, DEF_SCHEDULING_REGIME);
+    log.info("Scheduling regime: " + regime);
+    switch (regime) {
+      case REGIME_VIRTUAL:
+        dispatch = dispatchAlias = new PermitLimitedExecutor("ref-sync", (int) OrbitalProperties.getLongGlobalProperty(PROP_VIRTUAL_PERMITS, DEF_VIRTUAL_PERMITS));
+        break;
+
+      case REGIME_SHARED:
+        // fall through
+      default:
+        dispatch = dispatchAlias = Executors.newScheduledThreadPool((int) OrbitalProperties.getLongGlobalProperty(PROP_MAX_THREADS_ESI, DEF_MAX_THREADS_ESI));
+        break;
+    }
   }
 
   private void dispatchRefCheckSchedule() {
     RefCheckScheduleEvent refChecker = new RefCheckScheduleEvent(this, dispatchAlias);
-    refChecker.setTracker(dispatch.submit(refChecker));
-    pending.add(refChecker);
+    submit(dispatch, refChecker);
   }
 
   @Override
@@ -3,7 +3,12 @@ package enterprises.orbital.evekit.sync.ref;
 import enterprises.orbital.evekit.model.ESIRefSyncEndpoint;
 import enterprises.orbital.evekit.model.ESIRefSynchronizationHandler;
 import enterprises.orbital.evekit.sync.ControllerEvent;
+import enterprises.orbital.evekit.sync.DowntimeGate;
+import enterprises.orbital.evekit.sync.ESICircuitBreaker;
+import enterprises.orbital.evekit.sync.ESIHttpClientPool;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
@@ -25,6 +30,14 @@ public class ESIStandardRefSyncEvent extends ControllerEvent implements Runnable
     return handler.maxDelay();
   }
 
+  /**
+   * Sync queries time out at the event deadline, so a sync cancelled by the watchdog does not leave queries running.
+   */
+  @Override
+  protected boolean boundsQueries() {
+    return true;
+  }
+
   @Override
   public String toString() {
     return "ESIStandardRefSyncEvent{" +
@@ -34,6 +47,11 @@ public class ESIStandardRefSyncEvent extends ControllerEvent implements Runnable
         '}';
   }
 
+  @Override
+  public Collection<?> getIndexKeys() {
+    return Collections.singletonList(endpoint);
+  }
+
   public ESIRefSyncEndpoint getEndpoint() {
     return endpoint;
   }
@@ -50,9 +68,28 @@ public class ESIStandardRefSyncEvent extends ControllerEvent implements Runnable
   public void run() {
     log.fine("Starting execution: " + toString());
     super.run();
+    // Skip while the EVE server is down, except for the status sync which detects when it comes back.  The
+    // tracker stays unfinished, so the check schedule event queues another attempt on its next cycle.
+    if (endpoint != ESIRefSyncEndpoint.REF_SERVER_STATUS && DowntimeGate.getInstance()
+                                                                        .isPaused()) {
+      log.fine("Server down, skipping: " + toString());
+      return;
+    }
+    // Likewise skip while the endpoint's circuit is open
+    ESICircuitBreaker breaker = ESIHttpClientPool.getInstance()
+                                                 .getBreaker();
+    if (breaker.blockedUntil(endpoint) != 0) {
+      log.fine("Circuit open, skipping: " + toString());
+      return;
+    }
     // Ensure that only one thread is ever synchronizing a given endpoint.
     synchronized (endpoint) {
-      handler.synch(new RefSyncRefClientProvider(scheduler));
+      breaker.enter(endpoint);
+      try {
+        handler.synch(new RefSyncRefClientProvider(scheduler));
+      } finally {
+        breaker.exit();
+      }
     }
     log.fine("Execution complete: " + toString());
   }
@@ -82,17 +82,7 @@ public class RefCheckScheduleEvent extends ControllerEvent {
    * @return true if an event for the given endpoint is queued and is not done, false otherwise.
    */
   private boolean hasUnfinishedEvent(ESIRefSyncEndpoint ep) {
-    synchronized (eventScheduler.pending) {
-      for (ControllerEvent next : eventScheduler.pending) {
-        if (next instanceof ESIStandardRefSyncEvent) {
-          ESIStandardRefSyncEvent check = (ESIStandardRefSyncEvent) next;
-          if (check.getEndpoint() == ep && !check.getTracker()
-                                                 .isDone())
-            return true;
-        }
-      }
-    }
-    return false;
+    return eventScheduler.pending.hasUnfinished(ep);
   }
 
   /**
@@ -104,8 +94,7 @@ public class RefCheckScheduleEvent extends ControllerEvent {
   private void scheduleEvent(ControllerEvent ev, long eventTime) {
     long delay = Math.max(0L, eventTime - OrbitalProperties.getCurrentTime());
     log.fine("Scheduling event to occur in " + delay + " milliseconds");
-    ev.setTracker(taskScheduler.schedule(ev, delay, TimeUnit.MILLISECONDS));
-    eventScheduler.pending.add(ev);
+    eventScheduler.schedule(taskScheduler, ev, delay, TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -49,8 +49,7 @@ public class SnapshotEventScheduler extends EventScheduler {
                 long last = SnapshotScheduler.lastSnapshotTime(next);
                 if (now - last > separation) {
                   SnapshotEvent snapshotEvent = new SnapshotEvent(next);
-                  snapshotEvent.setTracker(dispatch.submit(snapshotEvent));
-                  pending.add(snapshotEvent);
+                  submit(dispatch, snapshotEvent);
                 }
               } catch (ParseException e) {
                 log.log(Level.WARNING, "Failed to check snapshot eligbility, skipping: " + next, e);
@@ -71,8 +70,7 @@ public class SnapshotEventScheduler extends EventScheduler {
       long delay = OrbitalProperties.getLongGlobalProperty(PROP_SNAPSHOT_CHECK_INTERVAL, DEF_SNAPSHOT_CHECK_INTERVAL);
       log.info("No events to dispatch, sleeping for " + TimeUnit.MINUTES.convert(delay, TimeUnit.MILLISECONDS) + " minutes");
       SleepEvent sleeper = new SleepEvent(delay);
-      sleeper.setTracker(dispatch.submit(sleeper));
-      pending.add(sleeper);
+      submit(dispatch, sleeper);
     } else {
       log.info("Dispatched " + pending.size() + " snapshot tasks");
     }
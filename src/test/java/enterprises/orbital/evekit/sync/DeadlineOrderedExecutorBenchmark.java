@@ -0,0 +1,161 @@
+package enterprises.orbital.evekit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare start lateness of syncs run in arrival order on a fixed pool (the shared regime) with syncs run on a
+ * {@link DeadlineOrderedExecutor} (the edf regime), for a backlog of syncs which are all due when submitted, as
+ * after a restart.  Each sync's start deadline is its due time plus a tolerance divided by its endpoint priority,
+ * as assigned by the account scheduler, with a mix of priority 4, 2 and 1 endpoints.  Run from the test
+ * classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.DeadlineOrderedExecutorBenchmark [syncs] [threads] [serviceMillis]
+ *     [toleranceMillis]
+ * </pre>
+ * <p>
+ * The tolerance defaults to two seconds rather than the ten minutes used in production so the benchmark finishes
+ * quickly.  Only the ratio of tolerance to backlog matters.
+ * <p>
+ * Also checks that the EDF pool keeps all of its threads when running tasks are cancelled with an interrupt (as
+ * the watchdog does) or fail with an Error.
+ */
+public class DeadlineOrderedExecutorBenchmark {
+  private static final long[] PRIORITIES = {4, 2, 1};
+
+  // A simulated sync which records when it started
+  private static final class Sync extends ControllerEvent {
+    final long priority;
+    final long service;
+    volatile long started;
+
+    Sync(long priority, long due, long tolerance, long service) {
+      this.priority = priority;
+      this.service = service;
+      setStartDeadline(due + tolerance / priority);
+    }
+
+    @Override
+    public long maxDelayTime() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run() {
+      started = System.currentTimeMillis();
+      try {
+        TimeUnit.MILLISECONDS.sleep(service);
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+      }
+    }
+  }
+
+  private static final class Collector extends EventScheduler {
+    @Override
+    public boolean fillPending() {
+      return false;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    long service = args.length > 2 ? Long.parseLong(args[2]) : 20L;
+    long tolerance = args.length > 3 ? Long.parseLong(args[3]) : 2000L;
+
+    System.out.println("syncs=" + count + " threads=" + threads + " service=" + service + "ms tolerance=" +
+                           tolerance + "ms (backlog " + count * service / threads + "ms)");
+    run("fifo", Executors.newFixedThreadPool(threads), count, service, tolerance);
+    run("edf", new DeadlineOrderedExecutor("benchmark", threads), count, service, tolerance);
+    checkRecovery(threads);
+  }
+
+  // Cancel a running task on every thread, fail a task on every thread, then check the pool still runs tasks
+  private static void checkRecovery(int threads) throws InterruptedException {
+    DeadlineOrderedExecutor executor = new DeadlineOrderedExecutor("recovery", threads);
+    CountDownLatch running = new CountDownLatch(threads);
+    List<FutureTask<?>> blocked = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      FutureTask<?> next = new FutureTask<>(() -> {
+        running.countDown();
+        TimeUnit.MINUTES.sleep(1);
+        return null;
+      });
+      blocked.add(next);
+      executor.execute(next);
+    }
+    running.await();
+    for (FutureTask<?> next : blocked)
+      next.cancel(true);
+    CountDownLatch failed = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++)
+      executor.execute(() -> {
+        failed.countDown();
+        throw new AssertionError("simulated failure");
+      });
+    failed.await();
+    int expected = threads * 4;
+    CountDownLatch ran = new CountDownLatch(expected);
+    for (int i = 0; i < expected; i++)
+      executor.execute(ran::countDown);
+    boolean ok = ran.await(10, TimeUnit.SECONDS);
+    System.out.println("recovery: " + (expected - ran.getCount()) + "/" + expected + " tasks ran after " + threads +
+                           " cancellations and " + threads + " failures  " + executor);
+    executor.shutdown();
+    if (!ok) throw new IllegalStateException("EDF pool lost threads");
+  }
+
+  private static void run(String name, ExecutorService executor, int count, long service,
+                          long tolerance) throws InterruptedException {
+    // Same workload for each executor: due times spread over the last second, submitted in due order
+    Random random = new Random(42);
+    long now = System.currentTimeMillis();
+    Collector collector = new Collector();
+    List<Sync> syncs = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long priority = PRIORITIES[random.nextInt(4) == 0 ? 0 : random.nextInt(3) == 0 ? 1 : 2];
+      syncs.add(new Sync(priority, now - 1000L + i * 1000L / count, tolerance, service));
+    }
+    for (Sync next : syncs)
+      collector.submit(executor, next);
+    for (int i = 0; i < count; i++)
+      collector.getCompletionQueue()
+               .take();
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    System.out.println(name);
+    for (long priority : PRIORITIES)
+      report(priority, syncs);
+    report(0, syncs);
+  }
+
+  // Report lateness for syncs of one priority, or all syncs if priority is zero
+  private static void report(long priority, List<Sync> syncs) {
+    int total = 0;
+    int late = 0;
+    long sum = 0;
+    long max = 0;
+    for (Sync next : syncs) {
+      if (priority != 0 && next.priority != priority) continue;
+      long lateness = next.started - next.getStartDeadline();
+      total++;
+      if (lateness > 0) {
+        late++;
+        sum += lateness;
+        max = Math.max(max, lateness);
+      }
+    }
+    System.out.printf("  %-11s late %4d/%-4d  mean lateness of late=%6d ms  max=%6d ms%n",
+                      priority == 0 ? "all" : "priority " + priority, late, total, late == 0 ? 0 : sum / late, max);
+  }
+}
@@ -0,0 +1,61 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the time a handler takes to walk every page of a paginated endpoint, with and without page prefetch,
+ * against a slow local ESI stand-in.  The simulated handler requests pages one after another and spends a fixed
+ * time processing each page, as the model handlers do.  Run from the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.ESIPagePrefetchBenchmark [latencyMillis] [pages] [processMillis]
+ * </pre>
+ */
+public class ESIPagePrefetchBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    long latency = args.length > 0 ? Long.parseLong(args[0]) : 100L;
+    int pages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long process = args.length > 2 ? Long.parseLong(args[2]) : 10L;
+
+    System.out.println("latency=" + latency + "ms pages=" + pages + " process=" + process + "ms/page");
+    try (SlowESIServer server = new SlowESIServer(latency, 32 * 1024, pages, 0)) {
+      OkHttpClient plain = new OkHttpClient();
+      run("sequential", plain, server, pages, process);
+
+      OkHttpClient prefetching = new OkHttpClient();
+      ESIPagePrefetcher prefetcher = new ESIPagePrefetcher(() -> prefetching, 60_000L);
+      prefetching.interceptors()
+                 .add(prefetcher);
+      run("prefetch", prefetching, server, pages, process);
+      System.out.println("  " + prefetcher);
+    }
+  }
+
+  private static void run(String name, OkHttpClient client, SlowESIServer server, int pages,
+                          long process) throws IOException, InterruptedException {
+    server.reset();
+    long start = System.nanoTime();
+    int page = 1;
+    int total = 1;
+    while (page <= total) {
+      Response response = client.newCall(new Request.Builder().url(server.url("/v1/corporations/1/assets/") +
+                                                                       "?datasource=tranquility&page=" + page)
+                                                              .build())
+                                .execute();
+      response.body()
+              .bytes();
+      total = Integer.parseInt(response.header("X-Pages"));
+      TimeUnit.MILLISECONDS.sleep(process);
+      page++;
+    }
+    double elapsed = (System.nanoTime() - start) / 1e6;
+    System.out.printf("%-12s %8.1f ms  server requests=%d  max concurrent=%d%n", name, elapsed,
+                      server.getRequests(), server.getMaxInFlight());
+  }
+}
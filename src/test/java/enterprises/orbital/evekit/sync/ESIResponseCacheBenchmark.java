@@ -0,0 +1,75 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.http.HttpDate;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Compare full fetches with fresh cache hits and 304 revalidation against a slow local ESI stand-in.  Run from
+ * the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.ESIResponseCacheBenchmark [latencyMillis] [bodyBytes] [requests]
+ * </pre>
+ * <p>
+ * Also checks that a revalidated response carries the Expires header from the 304, not the stale one stored
+ * with the entry.
+ */
+public class ESIResponseCacheBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    long latency = args.length > 0 ? Long.parseLong(args[0]) : 50L;
+    int bodyBytes = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+    int count = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+    System.out.println("latency=" + latency + "ms body=" + bodyBytes + " bytes requests=" + count);
+    try (SlowESIServer fresh = new SlowESIServer(latency, bodyBytes, 1, 300);
+         SlowESIServer stale = new SlowESIServer(latency, bodyBytes, 1, 0)) {
+      run("no cache", new OkHttpClient(), fresh, count);
+      run("fresh hits", cachingClient(), fresh, count);
+      run("304 revalidation", cachingClient(), stale, count);
+      checkRevalidatedHeaders(stale);
+    }
+  }
+
+  private static OkHttpClient cachingClient() {
+    OkHttpClient client = new OkHttpClient();
+    client.interceptors()
+          .add(new ESIResponseCache());
+    return client;
+  }
+
+  private static void run(String name, OkHttpClient client, SlowESIServer server, int count) throws IOException {
+    server.reset();
+    String url = server.url("/v1/characters/1/assets/");
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+      get(client, url);
+    double elapsed = (System.nanoTime() - start) / 1e6;
+    System.out.printf("%-18s mean=%7.2f ms  server requests=%3d  304s=%3d  body bytes sent=%,d%n", name,
+                      elapsed / count, server.getRequests(), server.getNotModified(), server.getBytesSent());
+  }
+
+  private static Response get(OkHttpClient client, String url) throws IOException {
+    Response response = client.newCall(new Request.Builder().url(url)
+                                                            .build())
+                              .execute();
+    response.body()
+            .bytes();
+    return response;
+  }
+
+  // The stale server always returns Expires = now, so a revalidated response must not carry an earlier Expires
+  private static void checkRevalidatedHeaders(SlowESIServer stale) throws IOException, InterruptedException {
+    OkHttpClient client = cachingClient();
+    String url = stale.url("/v1/characters/2/wallet/");
+    Date first = HttpDate.parse(get(client, url).header("Expires"));
+    Thread.sleep(1500);
+    Date second = HttpDate.parse(get(client, url).header("Expires"));
+    System.out.println("revalidated Expires advanced: " + second.after(first) + " (" + first + " -> " + second + ")");
+  }
+}
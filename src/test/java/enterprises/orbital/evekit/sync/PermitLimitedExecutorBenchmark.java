@@ -0,0 +1,83 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare sync throughput of the shared regime (a fixed pool of max_threads.esi threads) with the virtual regime
+ * ({@link PermitLimitedExecutor}) against a slow local ESI stand-in.  Each simulated sync makes a few sequential
+ * requests, so syncs spend nearly all their time waiting on I/O.  Run from the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.PermitLimitedExecutorBenchmark [syncs] [requestsPerSync] [latencyMillis]
+ *     [poolThreads] [permits]
+ * </pre>
+ * <p>
+ * On a JVM without virtual threads the permit executor falls back to one platform thread per permit, so it is
+ * also compared with a fixed pool of that size.
+ */
+public class PermitLimitedExecutorBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int syncs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    long latency = args.length > 2 ? Long.parseLong(args[2]) : 50L;
+    int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+    int permits = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+
+    System.out.println("syncs=" + syncs + " requests/sync=" + requests + " latency=" + latency + "ms" +
+                           " virtual threads=" + PermitLimitedExecutor.virtualThreadsAvailable());
+    OkHttpClient client = new OkHttpClient();
+    try (SlowESIServer server = new SlowESIServer(latency, 4 * 1024, 1, 0)) {
+      run("shared pool (" + poolThreads + ")", Executors.newScheduledThreadPool(poolThreads), client, server, syncs,
+          requests);
+      run("fixed pool (" + permits + ")", Executors.newFixedThreadPool(permits), client, server, syncs, requests);
+      run("permits (" + permits + ")", new PermitLimitedExecutor("benchmark", permits), client, server, syncs,
+          requests);
+    }
+  }
+
+  private static void run(String name, ExecutorService executor, OkHttpClient client, SlowESIServer server,
+                          int syncs, int requests) throws InterruptedException {
+    server.reset();
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.resetPeakThreadCount();
+    int baseThreads = threads.getThreadCount();
+    CountDownLatch done = new CountDownLatch(syncs);
+    long start = System.nanoTime();
+    for (int i = 0; i < syncs; i++) {
+      String url = server.url("/v1/characters/" + i + "/wallet/");
+      executor.execute(() -> {
+        try {
+          for (int r = 0; r < requests; r++) {
+            Response response = client.newCall(new Request.Builder().url(url)
+                                                                    .build())
+                                      .execute();
+            response.body()
+                    .bytes();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+    done.await();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-20s %7.2f s  %7.1f syncs/s  max concurrent requests=%3d  peak extra threads=%d%n", name,
+                      elapsed, syncs / elapsed, server.getMaxInFlight(), threads.getPeakThreadCount() - baseThreads);
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,135 @@
+package enterprises.orbital.evekit.sync;
+
+import com.squareup.okhttp.internal.http.HttpDate;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for ESI used by the benchmarks.  Every request waits a fixed latency before it is answered.
+ * Responses carry an ETag and Expires header like ESI, honour If-None-Match with a 304, and report the number
+ * of pages in X-Pages.  Bodies are a fixed size filled with a byte derived from the path and page, so the ETag
+ * for a path never changes.
+ */
+final class SlowESIServer implements AutoCloseable {
+  private final HttpServer server;
+  private final ExecutorService workers = Executors.newCachedThreadPool();
+  private final long latency;
+  private final int bodyBytes;
+  private final int pages;
+  private final long maxAge;
+  private final AtomicInteger requests = new AtomicInteger(0);
+  private final AtomicInteger notModified = new AtomicInteger(0);
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final AtomicInteger maxInFlight = new AtomicInteger(0);
+  private final AtomicLong bytesSent = new AtomicLong(0);
+
+  /**
+   * Start a server on an ephemeral local port.
+   *
+   * @param latency   delay in milliseconds before each response
+   * @param bodyBytes size of each 200 response body
+   * @param pages     value reported in X-Pages
+   * @param maxAge    seconds until responses expire, zero for responses which are already stale
+   * @throws IOException if the server can not be started
+   */
+  SlowESIServer(long latency, int bodyBytes, int pages, long maxAge) throws IOException {
+    this.latency = latency;
+    this.bodyBytes = bodyBytes;
+    this.pages = pages;
+    this.maxAge = maxAge;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(workers);
+    server.start();
+  }
+
+  String url(String path) {
+    return "http://127.0.0.1:" + server.getAddress()
+                                       .getPort() + path;
+  }
+
+  int getRequests() {
+    return requests.get();
+  }
+
+  int getNotModified() {
+    return notModified.get();
+  }
+
+  int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  void reset() {
+    requests.set(0);
+    notModified.set(0);
+    maxInFlight.set(0);
+    bytesSent.set(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      TimeUnit.MILLISECONDS.sleep(latency);
+      String path = exchange.getRequestURI()
+                            .getPath();
+      String query = exchange.getRequestURI()
+                             .getQuery();
+      int page = 1;
+      if (query != null)
+        for (String param : query.split("&"))
+          if (param.startsWith("page=")) page = Integer.parseInt(param.substring(5));
+      byte fill = (byte) (path.hashCode() * 31 + page);
+      String etag = "\"" + Integer.toHexString(path.hashCode()) + "-" + page + "\"";
+      exchange.getResponseHeaders()
+              .add("ETag", etag);
+      exchange.getResponseHeaders()
+              .add("Expires", HttpDate.format(new Date(System.currentTimeMillis() + maxAge * 1000L)));
+      exchange.getResponseHeaders()
+              .add("X-Pages", String.valueOf(pages));
+      if (etag.equals(exchange.getRequestHeaders()
+                              .getFirst("If-None-Match"))) {
+        notModified.incrementAndGet();
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+      byte[] body = new byte[bodyBytes];
+      Arrays.fill(body, fill);
+      exchange.getResponseHeaders()
+              .add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+      bytesSent.addAndGet(body.length);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    workers.shutdownNow();
+  }
+}
@@ -0,0 +1,134 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+import enterprises.orbital.evekit.sync.EventContextExecutor;
+import enterprises.orbital.evekit.sync.EventScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare latency of fast endpoint syncs submitted behind a burst of slow syncs (e.g. corporation assets), on a
+ * single shared pool and on {@link EndpointBulkheads} with the same total thread count, without and with fair
+ * queueing by user.  Each sync also hands a task to its scheduler, as handlers do for parallel requests, and the
+ * benchmark checks these ran in the sync's own bulkhead.  Uses the configured bulkhead groups.  Run from the test
+ * classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.account.EndpointBulkheadsBenchmark [defaultThreads] [slowSyncs]
+ *     [slowMillis] [fastSyncs] [fastMillis]
+ * </pre>
+ */
+public class EndpointBulkheadsBenchmark {
+
+  // A simulated sync which records when it was submitted and finished, and where its sub-task ran
+  private static final class Sync extends ESIStandardAccountSyncEvent {
+    final long service;
+    final long submitted = System.currentTimeMillis();
+    volatile long finished;
+    volatile Future<String> subTask;
+
+    Sync(long aid, ESISyncEndpoint endpoint, long service, ExecutorService scheduler) {
+      super(aid, aid, endpoint, scheduler);
+      this.service = service;
+    }
+
+    @Override
+    public long maxDelayTime() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run() {
+      subTask = new EventContextExecutor(getScheduler()).submit(() -> Thread.currentThread()
+                                                                            .getName());
+      try {
+        TimeUnit.MILLISECONDS.sleep(service);
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+      }
+      finished = System.currentTimeMillis();
+    }
+  }
+
+  private static final class Collector extends EventScheduler {
+    @Override
+    public boolean fillPending() {
+      return false;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int defaultThreads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int slowSyncs = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    long slowMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000L;
+    int fastSyncs = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+    long fastMillis = args.length > 4 ? Long.parseLong(args[4]) : 20L;
+
+    EndpointBulkheads bulkheads = new EndpointBulkheads(defaultThreads, false);
+    int threads = bulkheads.getThreadCount();
+    System.out.println("threads=" + threads + " slow: " + slowSyncs + " x " + slowMillis + "ms CORP_ASSETS, fast: " +
+                           fastSyncs + " x " + fastMillis + "ms CHAR_ONLINE");
+    run("shared pool", Executors.newFixedThreadPool(threads), slowSyncs, slowMillis, fastSyncs, fastMillis);
+    run("bulkheads", bulkheads, slowSyncs, slowMillis, fastSyncs, fastMillis);
+    run("fair", new EndpointBulkheads(defaultThreads, true), slowSyncs, slowMillis, fastSyncs, fastMillis);
+  }
+
+  private static void run(String name, ExecutorService executor, int slowSyncs, long slowMillis, int fastSyncs,
+                          long fastMillis) throws InterruptedException, ExecutionException {
+    Collector collector = new Collector();
+    List<Sync> slow = new ArrayList<>();
+    List<Sync> fast = new ArrayList<>();
+    for (int i = 0; i < slowSyncs; i++) {
+      Sync next = new Sync(i, ESISyncEndpoint.CORP_ASSETS, slowMillis, executor);
+      slow.add(next);
+      collector.submit(executor, next);
+    }
+    for (int i = 0; i < fastSyncs; i++) {
+      Sync next = new Sync(i, ESISyncEndpoint.CHAR_ONLINE, fastMillis, executor);
+      fast.add(next);
+      collector.submit(executor, next);
+    }
+    for (int i = 0; i < slowSyncs + fastSyncs; i++)
+      collector.getCompletionQueue()
+               .take();
+    String slowGroup = subTasksIn(slow, "account-sync-slow-");
+    String fastGroup = subTasksIn(fast, "account-sync-fast-");
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    System.out.printf("%-12s fast latency: %s   slow latency: %s%n", name, latency(fast), latency(slow));
+    if (executor instanceof EndpointBulkheads) {
+      System.out.println("             sub-tasks in own bulkhead: slow " + slowGroup + "  fast " + fastGroup);
+      if (!slowGroup.startsWith(slowSyncs + "/") || !fastGroup.startsWith(fastSyncs + "/"))
+        throw new IllegalStateException("Sub-tasks escaped their bulkhead");
+    }
+  }
+
+  // Number of syncs whose sub-task ran on a thread with the given name prefix
+  private static String subTasksIn(List<Sync> syncs, String prefix) throws InterruptedException,
+      ExecutionException {
+    int count = 0;
+    for (Sync next : syncs)
+      if (next.subTask.get()
+                      .startsWith(prefix)) count++;
+    return count + "/" + syncs.size();
+  }
+
+  // Mean and maximum time from submission to completion
+  private static String latency(List<Sync> syncs) {
+    long sum = 0;
+    long max = 0;
+    for (Sync next : syncs) {
+      long latency = next.finished - next.submitted;
+      sum += latency;
+      max = Math.max(max, latency);
+    }
+    return String.format("mean=%5d ms max=%5d ms", sum / syncs.size(), max);
+  }
+}
@@ -0,0 +1,55 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.base.OrbitalProperties;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measure how a {@link LoadLeveler} spreads a wave of overdue syncs, as after a restart or a re-authorization
+ * wave.  Without leveling every sync in the wave is dispatched in the same second.  Uses the configured rate,
+ * jitter and startup ramp.  Run from the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.account.LoadLevelerBenchmark [syncs]
+ * </pre>
+ */
+public class LoadLevelerBenchmark {
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+    LoadLeveler leveler = new LoadLeveler();
+    long now = OrbitalProperties.getCurrentTime();
+    // Syncs per dispatch second (the leveler's one second slots), relative to the current second
+    Map<Long, Integer> perSecond = new TreeMap<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      // Overdue by up to an hour
+      long assigned = leveler.assign(now - i % 3600 * 1000L);
+      perSecond.merge(assigned / 1000L - now / 1000L, 1, Integer::sum);
+    }
+    double elapsed = (System.nanoTime() - start) / 1e6;
+
+    int max = 0;
+    long busiest = 0;
+    for (Map.Entry<Long, Integer> next : perSecond.entrySet()) {
+      if (next.getValue() > max) {
+        max = next.getValue();
+        busiest = next.getKey();
+      }
+    }
+    long last = ((TreeMap<Long, Integer>) perSecond).lastKey();
+    System.out.println("syncs=" + count + " assign time=" + String.format("%.1f", elapsed) + " ms");
+    System.out.println("unleveled  max per second=" + count);
+    System.out.println("leveled    max per second=" + max + " (second " + busiest + ")  last dispatch after " +
+                           last + " s  " + leveler);
+    // Admissions across the startup ramp
+    for (long second : new long[]{0, 60, 300, 600, 900}) {
+      int total = 0;
+      for (long s = second; s < second + 60; s++)
+        total += perSecond.getOrDefault(s, 0);
+      System.out.printf("  seconds %4d-%4d  %5.1f per second%n", second, second + 59, total / 60.0);
+    }
+  }
+}
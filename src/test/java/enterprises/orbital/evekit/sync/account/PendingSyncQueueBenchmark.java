@@ -0,0 +1,69 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the heap retained by syncs which are not yet due when held in a {@link PendingSyncQueue} with the
+ * previous approach, where each sync was an event scheduled on a {@link ScheduledThreadPoolExecutor}.  Run from
+ * the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.account.PendingSyncQueueBenchmark [syncs]
+ * </pre>
+ * <p>
+ * The event figure is a lower bound: previously each event also held its account entity and handler, which need
+ * a database and are not created here.
+ */
+public class PendingSyncQueueBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    ESISyncEndpoint[] endpoints = ESISyncEndpoint.values();
+    long now = System.currentTimeMillis();
+
+    System.out.println("syncs=" + count);
+    long base = usedHeap();
+    PendingSyncQueue queue = new PendingSyncQueue();
+    for (int i = 0; i < count; i++)
+      queue.offer(i / endpoints.length, i / endpoints.length, i % endpoints.length, now + 3_600_000L + i);
+    long queueBytes = usedHeap() - base;
+    report("PendingSyncQueue", queueBytes, count);
+    if (queue.size() != count) throw new IllegalStateException("expected " + count + " queued, found " + queue.size());
+    queue = null;
+
+    base = usedHeap();
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    List<Object> futures = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ESIStandardAccountSyncEvent ev = new ESIStandardAccountSyncEvent(i / endpoints.length, i / endpoints.length,
+                                                                       endpoints[i % endpoints.length], scheduler);
+      futures.add(scheduler.schedule(ev, 3_600_000L + i, TimeUnit.MILLISECONDS));
+    }
+    long eventBytes = usedHeap() - base;
+    report("scheduled events", eventBytes, count);
+    System.out.printf("ratio %.1fx%n", (double) eventBytes / Math.max(1L, queueBytes));
+    scheduler.shutdownNow();
+    if (futures.size() != count) throw new IllegalStateException();
+  }
+
+  private static void report(String name, long bytes, int count) {
+    System.out.printf("%-18s %,12d bytes  %6.1f bytes/sync%n", name, bytes, (double) bytes / count);
+  }
+
+  // Heap in use after the collector has settled
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+}
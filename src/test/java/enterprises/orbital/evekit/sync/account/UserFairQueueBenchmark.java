@@ -0,0 +1,120 @@
+package enterprises.orbital.evekit.sync.account;
+
+import enterprises.orbital.evekit.model.ESISyncEndpoint;
+import enterprises.orbital.evekit.sync.EventScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare completion times of small users' syncs when they arrive behind a large user's backlog, with syncs
+ * dispatched straight to a shared pool and with a {@link UserFairQueue} in front of the pool.  The large user
+ * (e.g. a big corporation) submits many slow syncs first, then each small user submits a few fast syncs.  Run from
+ * the test classpath:
+ *
+ * <pre>
+ *   java enterprises.orbital.evekit.sync.account.UserFairQueueBenchmark [threads] [largeSyncs] [largeMillis]
+ *     [smallUsers] [smallSyncs] [smallMillis]
+ * </pre>
+ */
+public class UserFairQueueBenchmark {
+
+  // A simulated sync which records when it finished
+  private static final class Sync extends ESIStandardAccountSyncEvent {
+    final long service;
+    volatile long finished;
+
+    Sync(long uid, long service) {
+      super(uid, uid, ESISyncEndpoint.CHAR_WALLET_BALANCE, null);
+      this.service = service;
+    }
+
+    @Override
+    public long maxDelayTime() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run() {
+      try {
+        TimeUnit.MILLISECONDS.sleep(service);
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+      }
+      finished = System.currentTimeMillis();
+    }
+  }
+
+  private static final class Collector extends EventScheduler {
+    @Override
+    public boolean fillPending() {
+      return false;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int largeSyncs = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    long largeMillis = args.length > 2 ? Long.parseLong(args[2]) : 100L;
+    int smallUsers = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+    int smallSyncs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+    long smallMillis = args.length > 5 ? Long.parseLong(args[5]) : 20L;
+
+    System.out.println("threads=" + threads + " large user: " + largeSyncs + " x " + largeMillis + "ms, " +
+                           smallUsers + " small users: " + smallSyncs + " x " + smallMillis + "ms");
+    ScheduledExecutorService pool = Executors.newScheduledThreadPool(threads);
+    run("shared pool", pool, threads, largeSyncs, largeMillis, smallUsers, smallSyncs, smallMillis);
+    UserFairQueue fair = new UserFairQueue("benchmark", aid -> pool, threads);
+    run("fair queue", fair, threads, largeSyncs, largeMillis, smallUsers, smallSyncs, smallMillis);
+    System.out.println("  " + fair);
+    fair.shutdown();
+    pool.shutdown();
+  }
+
+  private static void run(String name, ExecutorService executor, int threads, int largeSyncs, long largeMillis,
+                          int smallUsers, int smallSyncs, long smallMillis) throws InterruptedException {
+    Collector collector = new Collector();
+    List<Sync> large = new ArrayList<>();
+    List<List<Sync>> small = new ArrayList<>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < largeSyncs; i++) {
+      Sync next = new Sync(0, largeMillis);
+      large.add(next);
+      collector.submit(executor, next);
+    }
+    for (int u = 1; u <= smallUsers; u++) {
+      List<Sync> user = new ArrayList<>();
+      for (int i = 0; i < smallSyncs; i++) {
+        Sync next = new Sync(u, smallMillis);
+        user.add(next);
+        collector.submit(executor, next);
+      }
+      small.add(user);
+    }
+    for (int i = 0; i < largeSyncs + smallUsers * smallSyncs; i++)
+      collector.getCompletionQueue()
+               .take();
+
+    // A user is done when its last sync finishes
+    long sum = 0;
+    long max = 0;
+    for (List<Sync> user : small) {
+      long done = 0;
+      for (Sync next : user)
+        done = Math.max(done, next.finished - start);
+      sum += done;
+      max = Math.max(max, done);
+    }
+    long largeDone = 0;
+    for (Sync next : large)
+      largeDone = Math.max(largeDone, next.finished - start);
+    System.out.printf("%-12s small users done: mean=%5d ms  max=%5d ms   large user done=%5d ms  (ideal %d ms)%n",
+                      name, sum / smallUsers, max, largeDone,
+                      (largeSyncs * largeMillis + smallUsers * smallSyncs * smallMillis) / threads);
+  }
+}